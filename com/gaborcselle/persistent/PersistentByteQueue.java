@@ -0,0 +1,307 @@
+/*******************************************************************************
+ * Copyright (c) 2005 Gabor Cselle.
+ * 
+ * The author can be reached at:
+ * Gabor Cselle (mail at gaborcselle dot com)
+ * 
+ * Redistribution and use in source and binary forms with or without
+ * modification are permitted provided that source distributions retain this
+ * entire copyright notice and comment.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND WITHOUT ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *******************************************************************************/
+
+package com.gaborcselle.persistent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persistent queue of opaque byte records, e.g. payloads that have already
+ * been encoded by the application. The records are stored as they are, 
+ * without going through serialization, in the file format of 
+ * {@link com.gaborcselle.persistent.PersistentQueue}, which this class uses
+ * and whose options it takes.
+ * <P>
+ * Consumers get the records as read-only <code>ByteBuffer</code>s. Records 
+ * of a memory-mapped queue that are read from its file are not copied: their
+ * buffers are slices of the mapped file. Records that are kept in memory are
+ * copied into arrays from a pool when they are added. Once a consumer is done
+ * with a removed record, it can hand the buffer back by {@link #release(ByteBuffer)},
+ * so that its array is reused for the records added later. A released buffer
+ * must not be used anymore.
+ * 
+ * @author Gabor Cselle
+ * @version 1.0
+ */
+public class PersistentByteQueue implements Closeable {
+    /** The smallest size of the arrays in the pool, as a power of two. */
+    private final static int MIN_POOLED_SHIFT = 6;
+    
+    /** The largest size of the arrays in the pool, as a power of two. */
+    private final static int MAX_POOLED_SHIFT = 16;
+    
+    /** Maximum number of free arrays of each size kept in the pool. */
+    private final static int POOL_DEPTH = 64;
+    
+    /** Maximum number of removed buffers whose arrays are remembered for release. */
+    private final static int MAX_LENT = 1024;
+    
+    /** Stores the remaining bytes of buffers, and decodes records without copying. */
+    private final static PersistentQueueCodec<ByteBuffer> CODEC = 
+        new PersistentQueueCodec<ByteBuffer>() {
+        public byte[] encode(ByteBuffer element) {
+            byte[] bytes = new byte[element.remaining()];
+            element.duplicate().get(bytes);
+            return bytes;
+        }
+        
+        public ByteBuffer decode(byte[] data, int offset, int length) {
+            return ByteBuffer.wrap(data, offset, length).slice();
+        }
+        
+        ByteBuffer decode(ByteBuffer data, PersistentQueueClassTable classTable) {
+            return data.slice();
+        }
+    };
+    
+    /** The queue holding the records. */
+    private final PersistentQueue<ByteBuffer> queue;
+    
+    /** Free arrays of the pool, by size. Guarded by <code>lent</code>. */
+    private final List<LinkedList<byte[]>> free = new ArrayList<LinkedList<byte[]>>();
+    
+    /** The arrays of removed buffers that can be released, by buffer. */
+    private final Map<ByteBuffer, byte[]> lent = new IdentityHashMap<ByteBuffer, byte[]>();
+    
+    /**
+     * Create a persistent byte queue.
+     * @param filename filename the file to use for keeping the persistent state
+     * @throws IOException if an I/O error occurs
+     */
+    public PersistentByteQueue(String filename) throws IOException {
+        this(filename, PersistentQueueDefragmentPolicy.ADAPTIVE, 0, 
+                PersistentQueueDurability.NONE, 0, false);
+    }
+    
+    /**
+     * Create a persistent byte queue. The parameters are those of
+     * {@link PersistentQueue#PersistentQueue(String, PersistentQueueDefragmentPolicy, 
+     * long, PersistentQueueDurability, int, boolean)}.
+     * @param filename filename the file to use for keeping the persistent state
+     * @param defragmentPolicy when the file should be defragmented
+     * @param segmentSize size in bytes after which a new segment file is started,
+     *        or 0 to keep the state in a single file
+     * @param durability when changes should be forced to disk
+     * @param memoryLimit maximum number of records kept in memory, or 0 to keep all
+     * @param memoryMapped whether to access the files through memory mappings
+     * @throws IOException if an I/O error occurs
+     */
+    public PersistentByteQueue(String filename, PersistentQueueDefragmentPolicy defragmentPolicy,
+            long segmentSize, PersistentQueueDurability durability, int memoryLimit,
+            boolean memoryMapped) throws IOException {
+        queue = new PersistentQueue<ByteBuffer>(filename, defragmentPolicy, segmentSize, 
+                durability, memoryLimit, memoryMapped, CODEC);
+        for (int shift = MIN_POOLED_SHIFT; shift <= MAX_POOLED_SHIFT; shift++) {
+            free.add(new LinkedList<byte[]>());
+        }
+    }
+    
+    /**
+     * Adds a record to the tail of the queue.
+     * @param record the bytes of the record
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalStateException if the queue is full
+     */
+    public void add(byte[] record) throws IOException {
+        add(ByteBuffer.wrap(record));
+    }
+    
+    /**
+     * Adds the remaining bytes of the given buffer to the tail of the queue as
+     * a record. The position of the buffer is not changed.
+     * @param record the buffer holding the bytes of the record
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalStateException if the queue is full
+     */
+    public void add(ByteBuffer record) throws IOException {
+        int size = record.remaining();
+        ByteBuffer copy = ByteBuffer.wrap(acquire(size), 0, size);
+        copy.put(record.duplicate());
+        copy.flip();
+        queue.add(copy);
+    }
+    
+    /**
+     * Retrieves, but does not remove, the head record of this queue, returning
+     * <code>null</code> if this queue is empty. The buffer cannot be released,
+     * and must not be used after the record has been removed and released.
+     * @return the head record of this queue, or null if this queue is empty.
+     */
+    public ByteBuffer peek() {
+        ByteBuffer head = queue.peek();
+        return head == null ? null : head.asReadOnlyBuffer();
+    }
+    
+    /**
+     * Removes and returns the head record of the queue.
+     * @return head record of this queue, or <code>null</code> if queue is empty.
+     * @throws IOException if an I/O error occurs
+     */
+    public ByteBuffer remove() throws IOException {
+        return lend(queue.remove());
+    }
+    
+    /**
+     * Removes and returns up to <code>maxElements</code> records from the head
+     * of the queue.
+     * @param maxElements the maximum number of records to remove
+     * @return the removed records in queue order, an empty list if queue is empty.
+     * @throws IOException if an I/O error occurs
+     */
+    public List<ByteBuffer> remove(int maxElements) throws IOException {
+        List<ByteBuffer> records = queue.remove(maxElements);
+        for (int i = 0; i < records.size(); i++) {
+            records.set(i, lend(records.get(i)));
+        }
+        return records;
+    }
+    
+    /**
+     * Removes and returns the head record of the queue, waiting until a record
+     * becomes available if the queue is empty.
+     * @return head record of this queue
+     * @throws IOException if an I/O error occurs or the queue is closed while waiting
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public ByteBuffer take() throws IOException, InterruptedException {
+        return lend(queue.take());
+    }
+    
+    /**
+     * Removes and returns the head record of the queue, waiting up to the 
+     * given time for a record to become available if the queue is empty.
+     * @param timeout how long to wait, in units of <code>unit</code>
+     * @param unit the unit of <code>timeout</code>
+     * @return head record of this queue, or <code>null</code> if the time has 
+     *         elapsed before a record became available
+     * @throws IOException if an I/O error occurs or the queue is closed while waiting
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public ByteBuffer poll(long timeout, TimeUnit unit) 
+            throws IOException, InterruptedException {
+        return lend(queue.poll(timeout, unit));
+    }
+    
+    /**
+     * Hands a buffer returned by one of the remove methods back to the queue,
+     * which reuses its array for records added later. Buffers that have no 
+     * array from the pool, e.g. slices of a memory-mapped file, are ignored.
+     * The buffer must not be used anymore afterwards.
+     * @param record the buffer of a removed record
+     */
+    public void release(ByteBuffer record) {
+        synchronized (lent) {
+            byte[] array = lent.remove(record);
+            if (array != null) {
+                LinkedList<byte[]> arrays = free.get(sizeClass(array.length) - MIN_POOLED_SHIFT);
+                if (arrays.size() < POOL_DEPTH) {
+                    arrays.add(array);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns true if the queue contains no records.
+     * @return true if the queue contains no records.
+     */
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+    
+    /**
+     * Returns the number of records in this queue.
+     * @return the number of records in this queue
+     */
+    public int size() {
+        return queue.size();
+    }
+    
+    /**
+     * Removes all records from the queue.
+     * @throws IOException if an I/O error occurs
+     */
+    public void clear() throws IOException {
+        queue.clear();
+    }
+    
+    /**
+     * Returns the statistics of this queue.
+     * @return the statistics of this queue
+     */
+    public PersistentQueueStatistics getStatistics() {
+        return queue.getStatistics();
+    }
+    
+    /**
+     * Closes the file underlying the queue. Records can no longer be added or 
+     * removed afterwards. Closing a queue that is already closed has no effect.
+     * @throws IOException if an I/O error occurs
+     */
+    public void close() throws IOException {
+        queue.close();
+    }
+    
+    /** Returns an array of at least the given size, from the pool if possible. */
+    private byte[] acquire(int size) {
+        int shift = sizeClass(size);
+        if (shift > MAX_POOLED_SHIFT) {
+            return new byte[size];
+        }
+        synchronized (lent) {
+            LinkedList<byte[]> arrays = free.get(shift - MIN_POOLED_SHIFT);
+            if (!arrays.isEmpty()) {
+                return arrays.removeLast();
+            }
+        }
+        return new byte[1 << shift];
+    }
+    
+    /** 
+     * Returns a read-only view of a removed record, remembering its array for
+     * release if it has the size of a pooled array.
+     */
+    private ByteBuffer lend(ByteBuffer record) {
+        if (record == null) {
+            return null;
+        }
+        ByteBuffer view = record.asReadOnlyBuffer();
+        if (record.hasArray() && !record.isReadOnly()) {
+            byte[] array = record.array();
+            int shift = sizeClass(array.length);
+            if (shift <= MAX_POOLED_SHIFT && array.length == 1 << shift) {
+                synchronized (lent) {
+                    if (lent.size() < MAX_LENT) {
+                        lent.put(view, array);
+                    }
+                }
+            }
+        }
+        return view;
+    }
+    
+    /** Returns the size of the pooled arrays that can hold the given size, as a power of two. */
+    private static int sizeClass(int size) {
+        return Math.max(MIN_POOLED_SHIFT, 32 - Integer.numberOfLeadingZeros(size - 1));
+    }
+}
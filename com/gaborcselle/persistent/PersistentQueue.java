@@ -15,15 +15,30 @@
 
 package com.gaborcselle.persistent;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /** 
  * A concurrent persistent queue. It keeps a copy of its status in a file on disk
@@ -32,18 +47,91 @@ import java.util.LinkedList;
  * is given when calling the constructor. 
  * <P>
  * The type of elements held in the queue are determined by the type parameter 
- * <code>E</code> of this class. The type <code>E</code> has to extend the 
- * <code>java.io.Serializable</code> interface so that the entries can be 
- * written to the file underlying each instance. 
+ * <code>E</code> of this class. The elements are written to the file 
+ * underlying each instance by a {@link PersistentQueueCodec}, which can be
+ * given at instantiation. By default, they are written by Java serialization,
+ * in which case the type <code>E</code> has to extend the 
+ * <code>java.io.Serializable</code> interface. 
+ * <P>
+ * <i>File format</i>: Elements are written as length-prefixed records, and the
+ * descriptor of each class is written only once per file (see
+ * <code>PersistentQueueFile</code>). Each record carries a checksum, so that
+ * a record a crash has left incomplete is recognized and cut off when the 
+ * queue is created again. A file written by the original version, which holds
+ * one complete serialized object per entry, is still read and is converted to
+ * the current format when the queue is created.
  * <P>
  * <i>Defragmentation</i>: When the first element of the queue is deleted, not
- * the entire file is written. Instead, a <code>PersistentQueueDeleteMarker</code>
- * is appended to the end of the file to signal that the first element has been
- * deleted. However, after some number of remove operations (by default, this is 50,
- * but that can be changed via an optional parameter at instantiation), the entire
- * file is defragmented: a temporary file is written with all contents of the
- * queue. It is then renamed to match the name of the original file. The name of
- * the temporary file is the original filename plus '.temp'.
+ * the entire file is written. Instead, a head record is appended to the end
+ * of the file to signal up to which element the queue has been deleted. 
+ * However, when the file holds too much garbage compared to the elements 
+ * still in the queue (see {@link PersistentQueueDefragmentPolicy}, which can
+ * be given at instantiation), the entire file is defragmented: a temporary 
+ * file is written with all contents of the queue. It is then forced to disk
+ * and atomically renamed to match the name of the original file, so that a 
+ * crash leaves either file in place. The name of the temporary file is the
+ * original filename plus '.temp'. Defragmentation runs in a background
+ * thread, which writes the temporary file while elements are added and
+ * removed, and only locks the queue to append the elements added in the
+ * meantime and to rename the file.
+ * <P>
+ * <i>Segments</i>: For deep queues, rewriting all live entries during
+ * defragmentation becomes expensive. A queue can therefore be created with a
+ * segment size, in which case its state is kept in a series of segment files
+ * instead of a single file. Elements and delete markers are always appended to
+ * the newest segment; once it has grown beyond the segment size, a new segment
+ * is started. A segment is deleted as soon as the head of the queue has moved
+ * past all elements in it, so no live entries are ever rewritten. The name of
+ * a segment file is the original filename plus '.segment.' and a number.
+ * <P>
+ * The file that is appended to is kept open for the lifetime of the queue. 
+ * Call {@link #close()} when the queue is no longer needed.
+ * <P>
+ * <i>Memory limit</i>: By default, all elements of the queue are also kept in
+ * memory. For backlogs that do not fit into memory, a queue can be created 
+ * with a memory limit, in which case only up to that many elements at the 
+ * head of the queue are kept in memory. All other elements are only kept in
+ * the file, and are read from it by their position as the head advances.
+ * <P>
+ * <i>Concurrency</i>: Adding and removing elements use separate locks, so a
+ * thread writing new elements to the file does not block threads removing 
+ * elements, and vice versa. <code>size()</code>, <code>isEmpty()</code> 
+ * and <code>peek()</code> do not lock at all, so monitoring the queue never
+ * holds up producers or consumers. They only see elements that are as 
+ * durable as the durability policy requires. Only <code>clear()</code>, 
+ * <code>close()</code>, defragmentation and checkpoints lock out both sides.
+ * No file is read or written while holding a monitor, only while holding a
+ * <code>ReentrantLock</code>, so virtual threads blocked on I/O in the queue
+ * do not pin their carrier threads.
+ * <P>
+ * <i>Blocking</i>: Besides the methods that return immediately, the queue has
+ * methods that wait for an element to become available ({@link #take()}, 
+ * {@link #poll(long, TimeUnit)}) or for space to become available 
+ * ({@link #put(Object)}, {@link #offer(Object, long, TimeUnit)}), 
+ * like a <code>java.util.concurrent.BlockingQueue</code>. Space is limited 
+ * by a capacity in elements and/or bytes, see {@link #setCapacity(int, long)}; 
+ * by default, the queue is unbounded.
+ * <P>
+ * <i>Asynchronous access</i>: {@link #addAsync(Object)} and {@link #pollAsync()}
+ * return immediately with a <code>CompletableFuture</code>. They hand their 
+ * request to a single thread of the queue, which adds all elements handed to 
+ * it in the meantime with one append, and removes the elements for all 
+ * waiting futures with one head record. A {@link PersistentQueuePublisher}
+ * offers the elements of a queue as a reactive stream instead.
+ * <P>
+ * <i>Checkpoints</i>: When the queue is closed, and after every 1000 removed
+ * elements, the position of the head element in its file is written to a
+ * checkpoint file, named like the original file plus '.checkpoint'. A queue
+ * created on an existing file starts reading at that position, so records of
+ * elements that have already been removed are not read again.
+ * <P>
+ * <i>Durability</i>: By default, changes are written to the file but not forced
+ * to disk, so they survive program crashes but may be lost in a system crash.
+ * A {@link PersistentQueueDurability} policy given at instantiation determines
+ * when changes are forced to disk. The number and duration of these forces are
+ * available from {@link #getStatistics()}. With <code>GROUP_COMMIT</code>, 
+ * elements are handed to a writer thread, which appends all elements that
+ * are pending at a time with a single write and a single force.
  * <p>
  * More information can be found at 
  * <A HREF="http://www.gaborcselle.com/writings/java/persistent_queue.html">the author's website</A>.
@@ -51,30 +139,184 @@ import java.util.LinkedList;
  * @author Gabor Cselle
  * @version 1.0
  */
-public class PersistentQueue<E extends Serializable> {
+public class PersistentQueue<E> implements Closeable {
     private final String filename;
-    private final int defragmentInterval;
+    /** When the file of a queue kept in a single file is defragmented. */
+    private final PersistentQueueDefragmentPolicy defragmentPolicy;
     /** How many remove()s have we executed since last defragmenting the file? */
     private int removesSinceDefragment = 0;
+    /** When defragmentation was last requested, in System.nanoTime() terms. */
+    private long lastDefragmentNanos = System.nanoTime();
+    
+    /** 
+     * Guards the tail of the queue: appending elements, starting segments,
+     * pendingAdds and pendingBytes. When both locks are needed, putLock has to be acquired first.
+     */
+    private final ReentrantLock putLock = new ReentrantLock();
+    
+    /** Signalled when space may have become available. */
+    private final Condition notFull = putLock.newCondition();
+    
+    /** 
+     * Guards the head of the queue: removing elements, recording removals and
+     * deleting segments.
+     */
+    private final ReentrantLock takeLock = new ReentrantLock();
     
-    /** Default number of remove() operations between writing defragmented list files. */
-    private final static int DEFAULT_DEFRAGMENT_INTERVAL = 50;
+    /** Signalled when elements may have become available. */
+    private final Condition notEmpty = takeLock.newCondition();
+    
+    /** 
+     * Held while a file is defragmented, so that only one temporary file is
+     * written at a time. Acquired before the put lock.
+     */
+    private final ReentrantLock defragmentLock = new ReentrantLock();
     
     /** 
      * What to postfix the given filename with to get the filename that 
      * should be used for the temporary file. 
      */
     private final static String TEMPFILE_NAME_POSTFIX = ".temp";
+
+    /**
+     * What to postfix the given filename with, followed by the segment number,
+     * to get the filename of a segment file.
+     */
+    private final static String SEGMENT_NAME_INFIX = ".segment.";
+
+    /** What to postfix the given filename with to get the checkpoint filename. */
+    private final static String CHECKPOINT_NAME_POSTFIX = ".checkpoint";
+
+    /** Number of removed elements after which a checkpoint is written. */
+    private final static int CHECKPOINT_INTERVAL = 1000;
+
+    /** How many elements have been removed since the last checkpoint was written? */
+    private int removesSinceCheckpoint = 0;
+
+    /** Maximum size of a segment file in bytes, or 0 if a single file is used. */
+    private final long segmentSize;
+
+    /** Segment files of a segmented queue, oldest first. Guarded by segmentLock. */
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
     
-    private LinkedList<E> list;
-    
+    /** 
+     * Guards segments, and keeps a new segment from being started while a
+     * head record is appended.
+     */
+    private final ReentrantLock segmentLock = new ReentrantLock();
+
+    /** The file that is appended to: the queue file, or the newest segment file. */
+    private volatile PersistentQueueFile activeFile;
+
+    /** When changes are forced to disk. */
+    private final PersistentQueueDurability durability;
+
+    /** Statistics of this queue. */
+    private final PersistentQueueStatistics statistics = new PersistentQueueStatistics();
+
+    /** Background thread forcing changes to disk for an INTERVAL policy, or null. */
+    private Timer syncTimer;
+
+    /** Are the files of the queue accessed through memory mappings? */
+    private final boolean memoryMapped;
+
+    /** Codec the elements are written to the files with. */
+    private final PersistentQueueCodec<E> codec;
+
+    /** Thread appending elements for a GROUP_COMMIT policy, or null. */
+    private final GroupCommitWriter writer;
+
+    /** Thread defragmenting the file of a queue kept in a single file, or null. */
+    private final Defragmenter defragmenter;
+
+    /** 
+     * Thread serving asynchronous adds and polls, or null if none have been 
+     * made yet. Set while holding asyncLock.
+     */
+    private volatile AsyncWorker asyncWorker;
+
+    /** Guards starting asyncWorker. */
+    private final Object asyncLock = new Object();
+
+    /** Has close() been called? Guarded by asyncLock. */
+    private boolean asyncClosed = false;
+
+    /** Listeners run after elements have been added, see {@link #addListener(Runnable)}. */
+    private final CopyOnWriteArrayList<Runnable> listeners = new CopyOnWriteArrayList<Runnable>();
+
+    /** The error a background force failed with, or null. */
+    private volatile IOException syncFailure;
+
+    /** The error background defragmentation failed with, or null. */
+    private volatile IOException defragmentFailure;
+
+    /** Has the queue been closed? */
+    private volatile boolean closed = false;
+
+    /** Sequence number of the head element of the queue. */
+    private volatile long headSequence = 0;
+
+    /** Sequence number that is given to the next element added to the queue. */
+    private volatile long nextSequence = 0;
+
+    /** 
+     * Number of elements in the queue. Elements are only counted once they 
+     * are as durable as the durability policy requires, so a thread that sees
+     * them can rely on them being in the file.
+     */
+    private final AtomicInteger count = new AtomicInteger();
+
+    /** 
+     * The head element of the queue, or null if the queue is empty. Set while
+     * holding the take lock, so that peek() can read it without locking.
+     */
+    private volatile E head;
+
+    /** Number of times the queue has been cleared. Guarded by the put lock. */
+    private int clears = 0;
+
+    /** Maximum number of elements kept in memory, or 0 to keep all of them. */
+    private final int memoryLimit;
+
+    /** 
+     * The elements at the head of the queue that are kept in memory. Unless 
+     * there is a memory limit, these are all elements of the queue. Guarded
+     * by the monitor of index.
+     */
+    private final PersistentQueueBuffer<E> list = new PersistentQueueBuffer<E>();
+
+    /** 
+     * Positions of the entry records of all elements in the queue, in their 
+     * files. Elements read from a file written by an earlier version have an 
+     * offset of -1 until the file has been converted. Guarded by its own monitor,
+     * which is only held while list or index are changed, never during I/O.
+     */
+    private final PersistentQueueIndex index = new PersistentQueueIndex();
+
+    /** Maximum number of elements in the queue, or 0 if there is no such limit. */
+    private volatile int capacity = 0;
+
+    /** Maximum size of the records of the elements in bytes, or 0 if there is no such limit. */
+    private volatile long byteCapacity = 0;
+
+    /** Number of elements handed to the writer thread that have not been counted yet. */
+    private int pendingAdds = 0;
+
+    /** 
+     * Size of the records of the elements handed to the writer thread that 
+     * have not been appended yet, in bytes. Only reserved with a byte capacity.
+     */
+    private long pendingBytes = 0;
+
     /**
-     * Create a persistent queue. 
+     * Create a persistent queue. The file is defragmented as given by
+     * {@link PersistentQueueDefragmentPolicy#ADAPTIVE}.
      * @param filename the file to use for keeping the persistent state
      * @throws IOException if an I/O error occurs
      */
     public PersistentQueue(String filename) throws IOException {
-        this(filename, DEFAULT_DEFRAGMENT_INTERVAL);
+        this(filename, PersistentQueueDefragmentPolicy.ADAPTIVE, 0, 
+                PersistentQueueDurability.NONE, 0);
     }
 
     /**
@@ -85,20 +327,167 @@ public class PersistentQueue<E extends Serializable> {
      * @throws IOException if an I/O error occurs
      */
     public PersistentQueue(String filename, int defragmentInterval) throws IOException {
+        this(filename, defragmentInterval, 0);
+    }
+
+    /**
+     * Create a persistent queue.
+     * If <code>segmentSize</code> is positive, the state of the queue is kept in
+     * segment files named after <code>filename</code>, each of which is closed
+     * once it has grown to <code>segmentSize</code> bytes. Segments are deleted
+     * as soon as all of their elements have been removed, and
+     * <code>defragmentInterval</code> is not used. Otherwise, the state of the
+     * queue is kept in a single file with <code>filename</code>.
+     * @param filename filename the file to use for keeping the persistent state
+     * @param defragmentInterval number of deletes after which defragment operation should start
+     * @param segmentSize size in bytes after which a new segment file is started,
+     *        or 0 to keep the state in a single file
+     * @throws IOException if an I/O error occurs
+     */
+    public PersistentQueue(String filename, int defragmentInterval, long segmentSize)
+            throws IOException {
+        this(filename, defragmentInterval, segmentSize, PersistentQueueDurability.NONE);
+    }
+
+    /**
+     * Create a persistent queue.
+     * Like {@link #PersistentQueue(String, int, long)}, but changes to the queue
+     * are forced to disk as given by <code>durability</code>.
+     * @param filename filename the file to use for keeping the persistent state
+     * @param defragmentInterval number of deletes after which defragment operation should start
+     * @param segmentSize size in bytes after which a new segment file is started,
+     *        or 0 to keep the state in a single file
+     * @param durability when changes should be forced to disk
+     * @throws IOException if an I/O error occurs
+     */
+    public PersistentQueue(String filename, int defragmentInterval, long segmentSize,
+            PersistentQueueDurability durability) throws IOException {
+        this(filename, defragmentInterval, segmentSize, durability, 0);
+    }
+
+    /**
+     * Create a persistent queue.
+     * Like {@link #PersistentQueue(String, int, long, PersistentQueueDurability)},
+     * but if <code>memoryLimit</code> is positive, at most that many elements 
+     * at the head of the queue are kept in memory. The other elements are read
+     * from the file when they reach the head of the queue.
+     * @param filename filename the file to use for keeping the persistent state
+     * @param defragmentInterval number of deletes after which defragment operation should start
+     * @param segmentSize size in bytes after which a new segment file is started,
+     *        or 0 to keep the state in a single file
+     * @param durability when changes should be forced to disk
+     * @param memoryLimit maximum number of elements kept in memory, or 0 to keep all
+     * @throws IOException if an I/O error occurs
+     */
+    public PersistentQueue(String filename, int defragmentInterval, long segmentSize,
+            PersistentQueueDurability durability, int memoryLimit) throws IOException {
+        this(filename, PersistentQueueDefragmentPolicy.removes(defragmentInterval), 
+                segmentSize, durability, memoryLimit);
+    }
+
+    /**
+     * Create a persistent queue.
+     * Like {@link #PersistentQueue(String, int, long, PersistentQueueDurability, int)},
+     * but a queue kept in a single file is defragmented as given by
+     * <code>defragmentPolicy</code> instead of after a fixed number of deletes.
+     * @param filename filename the file to use for keeping the persistent state
+     * @param defragmentPolicy when the file should be defragmented
+     * @param segmentSize size in bytes after which a new segment file is started,
+     *        or 0 to keep the state in a single file
+     * @param durability when changes should be forced to disk
+     * @param memoryLimit maximum number of elements kept in memory, or 0 to keep all
+     * @throws IOException if an I/O error occurs
+     */
+    public PersistentQueue(String filename, PersistentQueueDefragmentPolicy defragmentPolicy,
+            long segmentSize, PersistentQueueDurability durability, int memoryLimit) 
+            throws IOException {
+        this(filename, defragmentPolicy, segmentSize, durability, memoryLimit, false);
+    }
+
+    /**
+     * Create a persistent queue.
+     * Like {@link #PersistentQueue(String, PersistentQueueDefragmentPolicy, long, 
+     * PersistentQueueDurability, int)}, but if <code>memoryMapped</code> is true,
+     * the files of the queue are memory-mapped: elements are written to and 
+     * read from mapped memory instead of through a system call each. Forcing 
+     * changes to disk as required by <code>durability</code> forces the mapped
+     * memory.
+     * @param filename filename the file to use for keeping the persistent state
+     * @param defragmentPolicy when the file should be defragmented
+     * @param segmentSize size in bytes after which a new segment file is started,
+     *        or 0 to keep the state in a single file
+     * @param durability when changes should be forced to disk
+     * @param memoryLimit maximum number of elements kept in memory, or 0 to keep all
+     * @param memoryMapped whether to access the files through memory mappings
+     * @throws IOException if an I/O error occurs
+     */
+    @SuppressWarnings("unchecked")
+    public PersistentQueue(String filename, PersistentQueueDefragmentPolicy defragmentPolicy,
+            long segmentSize, PersistentQueueDurability durability, int memoryLimit,
+            boolean memoryMapped) throws IOException {
+        this(filename, defragmentPolicy, segmentSize, durability, memoryLimit, memoryMapped,
+                (PersistentQueueCodec<E>)PersistentQueueCodec.serialization());
+    }
+
+    /**
+     * Create a persistent queue.
+     * Like {@link #PersistentQueue(String, PersistentQueueDefragmentPolicy, long, 
+     * PersistentQueueDurability, int, boolean)}, but the elements are written 
+     * to the files by <code>codec</code> instead of by Java serialization. An 
+     * existing file has to have been written with the same codec.
+     * @param filename filename the file to use for keeping the persistent state
+     * @param defragmentPolicy when the file should be defragmented
+     * @param segmentSize size in bytes after which a new segment file is started,
+     *        or 0 to keep the state in a single file
+     * @param durability when changes should be forced to disk
+     * @param memoryLimit maximum number of elements kept in memory, or 0 to keep all
+     * @param memoryMapped whether to access the files through memory mappings
+     * @param codec codec to write the elements to the files with
+     * @throws IOException if an I/O error occurs
+     */
+    public PersistentQueue(String filename, PersistentQueueDefragmentPolicy defragmentPolicy,
+            long segmentSize, PersistentQueueDurability durability, int memoryLimit,
+            boolean memoryMapped, PersistentQueueCodec<E> codec) throws IOException {
         this.filename = filename;
-        this.defragmentInterval = defragmentInterval;
+        this.defragmentPolicy = defragmentPolicy;
+        this.segmentSize = segmentSize;
+        this.durability = durability;
+        this.memoryLimit = memoryLimit;
+        this.memoryMapped = memoryMapped;
+        this.codec = codec;
         this.removesSinceDefragment = 0;
-        
-        list = new LinkedList<E>();
+
         File file = new File(filename);
-        
-        // if file does exists:
-        if (file.exists()) {
-            // read in the file contents
+        resolveInterruptedDefragment();
+
+        if (segmentSize > 0) {
+            // read in the contents of all segment files, if any
+            readStateFromSegments();
+        } else if (file.exists()) {
+            // if file does exists: read in the file contents
             readStateFromFile(this.filename);
         } else {
-            // else, if file exists
-            createEmptyFile(this.filename);
+            // else, start a file that only holds a header
+            activeFile = PersistentQueueFile.create(file, 0, 0, statistics, memoryMapped, codec);
+        }
+        trimList();
+        count.set(index.size());
+        head = list.isEmpty() ? null : list.peekFirst();
+        
+        if (durability.getKind() == PersistentQueueDurability.Kind.INTERVAL) {
+            startSyncTimer();
+        }
+        if (durability == PersistentQueueDurability.GROUP_COMMIT) {
+            writer = new GroupCommitWriter();
+            writer.start();
+        } else {
+            writer = null;
+        }
+        if (segmentSize == 0) {
+            defragmenter = new Defragmenter();
+            defragmenter.start();
+        } else {
+            defragmenter = null;
         }
     }
 
@@ -106,26 +495,65 @@ public class PersistentQueue<E extends Serializable> {
      * Clears the entire queue and forces the underlying file to be rewritten.
      * @throws IOException if an I/O error occurs
      */
-    public synchronized void clear() throws IOException {
-        list.clear();
-        defragmentFile();
-        removesSinceDefragment = 0;
+    public void clear() throws IOException {
+        if (defragmenter != null) {
+            // the temporary file is not needed anymore
+            defragmenter.cancel();
+        }
+        PersistentQueueFile file;
+        long position;
+        defragmentLock.lock();
+        try {
+            putLock.lock();
+            try {
+                takeLock.lock();
+                try {
+                    ensureOpen();
+                    synchronized (index) {
+                        list.clear();
+                        index.clear();
+                    }
+                    count.set(0);
+                    head = null;
+                    clears++;
+                    headSequence = nextSequence;
+                    if (segmentSize > 0) {
+                        deleteAllSegments();
+                    } else {
+                        defragmentFile();
+                    }
+                    removesSinceDefragment = 0;
+                    notFull.signalAll();
+                
+                    file = activeFile;
+                    position = file.length();
+                    syncAlways(file, position);
+                } finally {
+                    takeLock.unlock();
+                }
+            } finally {
+                putLock.unlock();
+            }
+        } finally {
+            defragmentLock.unlock();
+        }
+        syncGroupCommit(file, position);
     }
     
     /**
      * Returns true if the queue contains no elements.
      * @return true if the queue contains no elements.
      */
-    public synchronized boolean isEmpty() {
-        return list.size() == 0;
+    public boolean isEmpty() {
+        return count.get() == 0;
     }
     
     /**
      * Returns the number of elements in this queue.
      * @return the number of elements in this queue
      */
-    public synchronized int size() {
-        return list.size();
+    public int size() {
+        return count.get();
     }
     
     /**
@@ -133,11 +561,8 @@ public class PersistentQueue<E extends Serializable> {
      * returning <code>null</code> if this queue is empty.
      * @return the head of this queue, or null if this queue is empty.
      */
-    public synchronized E peek() {
-        if (list.size() != 0) 
-            return list.get(0);
-        
-        return null;
+    public E peek() {
+        return head;
     }
     
     /**
@@ -145,140 +570,2019 @@ public class PersistentQueue<E extends Serializable> {
      * @return head element of this queue, or <code>null</code> if queue is empty.
      * @throws IOException if an I/O error occurs
      */ 
-    public synchronized E remove() throws IOException {
-        if (list.size() == 0) {
+    public E remove() throws IOException {
+        List<E> entries = remove(1);
+        if (entries.isEmpty()) {
             return null;
         }
         
-        E entry = list.remove(0); 
-        
-        // defragment file if needed
-        removesSinceDefragment++;
-        if (removesSinceDefragment >= defragmentInterval) {
-            defragmentFile();
-            removesSinceDefragment = 0;
-        } else {
-            // or just append to the file
-            appendEntryToFile(filename, new PersistentQueueDeleteMarker());
+        return entries.get(0);
+    }
+    
+    /**
+     * Removes and returns up to <code>maxElements</code> elements from the head
+     * of the persistent queue. The removal is recorded in the file with a single 
+     * head record, however many elements are removed.
+     * @param maxElements the maximum number of elements to remove
+     * @return the removed elements in queue order, an empty list if queue is empty.
+     * @throws IOException if an I/O error occurs
+     */ 
+    public List<E> remove(int maxElements) throws IOException {
+        return remove(maxElements, Long.MAX_VALUE);
+    }
+    
+    /**
+     * Removes and returns up to <code>maxElements</code> elements from the head
+     * of the persistent queue, but none with a sequence number of 
+     * <code>endSequence</code> or higher.
+     */
+    private List<E> remove(int maxElements, long endSequence) throws IOException {
+        List<E> entries;
+        PersistentQueueFile file;
+        long position;
+        boolean maintenanceDue;
+        takeLock.lock();
+        try {
+            ensureOpen();
+            int removed = (int)Math.min(Math.min(maxElements, count.get()), 
+                    endSequence - headSequence);
+            entries = new ArrayList<E>(Math.max(removed, 0));
+            if (removed <= 0) {
+                return entries;
+            }
+            
+            readIntoList(removed);
+            synchronized (index) {
+                for (int i = 0; i < removed; i++) {
+                    entries.add(list.removeFirst());
+                }
+                index.removeFirst(removed);
+            }
+            count.addAndGet(-removed);
+            removeHead(removed);
+            
+            // keep the new head element in memory
+            boolean listEmpty;
+            synchronized (index) {
+                listEmpty = list.isEmpty();
+            }
+            if (listEmpty) {
+                readIntoList(memoryLimit);
+            }
+            updateHead();
+            
+            file = activeFile;
+            position = file.length();
+            syncAlways(file, position);
+            maintenanceDue = isMaintenanceDue();
+        } finally {
+            takeLock.unlock();
+        }
+        signalNotFull();
+        syncGroupCommit(file, position);
+        if (maintenanceDue) {
+            maintain();
         }
         
-        return entry;
+        return entries;
     }
-
+    
     /**
-     * Adds an element to the tail of the queue.
-     * @param element the element to add
+     * Removes up to <code>maxElements</code> elements from the head of the 
+     * persistent queue and adds them to the given collection, in queue order.
+     * The removal is recorded in the file with a single head record.
+     * @param collection the collection to transfer elements into
+     * @param maxElements the maximum number of elements to transfer
+     * @return the number of elements transferred
      * @throws IOException if an I/O error occurs
      */
-    public synchronized void add(E element) throws IOException {
-        appendEntryToFile(filename, element);
-        
-        list.add(element);
+    public int drainTo(Collection<? super E> collection, int maxElements) throws IOException {
+        List<E> entries = remove(maxElements);
+        collection.addAll(entries);
         
-        return;
+        return entries.size();
     }
     
-    /** Creates an empty file with no content (0 bytes size) with given filename. */
-    private void createEmptyFile(String filename) throws IOException {
-        File emptyFile = new File(filename);
-        if (!emptyFile.createNewFile()) {
-            throw new IOException("Could not create new file: " + filename);
+    /**
+     * Removes all elements from the persistent queue and adds them to the given
+     * collection, in queue order.
+     * @param collection the collection to transfer elements into
+     * @return the number of elements transferred
+     * @throws IOException if an I/O error occurs
+     */
+    public int drainTo(Collection<? super E> collection) throws IOException {
+        return drainTo(collection, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * Removes and returns the head element of the persistent queue, waiting 
+     * until an element becomes available if the queue is empty.
+     * @return head element of this queue
+     * @throws IOException if an I/O error occurs or the queue is closed while waiting
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public E take() throws IOException, InterruptedException {
+        return poll(-1);
+    }
+    
+    /**
+     * Removes and returns the head element of the persistent queue, waiting up
+     * to the given time for an element to become available if the queue is empty.
+     * @param timeout how long to wait, in units of <code>unit</code>
+     * @param unit the unit of <code>timeout</code>
+     * @return head element of this queue, or <code>null</code> if the time has 
+     *         elapsed before an element became available
+     * @throws IOException if an I/O error occurs or the queue is closed while waiting
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public E poll(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        return poll(Math.max(0, unit.toNanos(timeout)));
+    }
+    
+    /**
+     * Adds an element to the tail of the queue, waiting for space to become 
+     * available if the queue is full.
+     * @param element the element to add
+     * @throws IOException if an I/O error occurs or the queue is closed while waiting
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void put(E element) throws IOException, InterruptedException {
+        offerAll(Collections.singletonList(element), -1);
+    }
+    
+    /**
+     * Adds an element to the tail of the queue if that is possible without 
+     * exceeding the capacity of the queue.
+     * @param element the element to add
+     * @return true if the element has been added, false if the queue is full
+     * @throws IOException if an I/O error occurs
+     */
+    public boolean offer(E element) throws IOException {
+        try {
+            return offerAll(Collections.singletonList(element), 0) >= 0;
+        } catch (InterruptedException e) {
+            // offerAll() does not wait without a timeout
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while adding to queue");
         }
     }
     
-    @SuppressWarnings("unchecked")
-    /** 
-     * Completely re-read all elements from the file with given filename.
-     * Clears any elements that are still in queue when method is called.
-     * */
-    private synchronized void readStateFromFile(String filename) throws IOException {
-        FileInputStream fis = new FileInputStream(filename);
-        
-        // clear the list - we're reading it afresh from the file
-        list.clear();
-        
-        // loop over all data that is in that file
-        while (fis.available() > 0) { 
-            Serializable pqentry;
-        
-            // a new object input stream to read in the next object
-            ObjectInputStream ois = new ObjectInputStream(fis);
-            try {
-                pqentry = (Serializable)ois.readObject();
-            } catch (ClassNotFoundException e) {
-                // convert to a IOException 
-                throw new IOException(e.toString()); 
-            } catch (ClassCastException e) {
-                // convert to a IOException 
-                throw new IOException(e.toString()); 
-            } catch (StreamCorruptedException e) {
-                throw new IOException(e.toString());
-            }
-            
-            // now adjust our internal data structures by adding this object:
-            if (pqentry instanceof PersistentQueueDeleteMarker) {
-                list.remove(0);
-            } else { 
-                try {
-                    list.add((E)pqentry);
-                } catch (ClassCastException e) {
-                    // convert to a IOException 
-                    throw new IOException(e.toString()); 
-                } 
-            } 
+    /**
+     * Adds an element to the tail of the queue, waiting up to the given time 
+     * for space to become available if the queue is full.
+     * @param element the element to add
+     * @param timeout how long to wait, in units of <code>unit</code>
+     * @param unit the unit of <code>timeout</code>
+     * @return true if the element has been added, false if the time has elapsed
+     *         before space became available
+     * @throws IOException if an I/O error occurs or the queue is closed while waiting
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean offer(E element, long timeout, TimeUnit unit) 
+            throws IOException, InterruptedException {
+        return offerAll(Collections.singletonList(element), 
+                Math.max(0, unit.toNanos(timeout))) >= 0;
+    }
+    
+    /**
+     * Sets the capacity of the queue. Elements are only added while the queue 
+     * holds no more than <code>capacity</code> elements with them, and the 
+     * records of its elements take up no more than <code>byteCapacity</code> 
+     * bytes in the file with theirs. A single element whose record alone is 
+     * larger than <code>byteCapacity</code> is only added to an empty queue.
+     * Elements that are already in the queue are not affected by a smaller 
+     * capacity.
+     * @param capacity maximum number of elements, or 0 for no limit
+     * @param byteCapacity maximum size of the file records of the elements in 
+     *        bytes, or 0 for no limit
+     */
+    public void setCapacity(int capacity, long byteCapacity) {
+        putLock.lock();
+        try {
+            this.capacity = capacity;
+            this.byteCapacity = byteCapacity;
+            notFull.signalAll();
+        } finally {
+            putLock.unlock();
         }
-
-        fis.close();
     }
     
-    /** Attaches an entry to the file with given filename.*/
-    private synchronized void appendEntryToFile(String filename, Serializable entry)
-            throws IOException {
-        FileOutputStream fos = new FileOutputStream(filename, true);
-        ObjectOutputStream oos = new ObjectOutputStream(fos);
-        
-        oos.writeObject(entry);
-        
-        oos.flush(); oos.close();
-        fos.flush(); fos.close();
+    /**
+     * Returns the number of elements that can be added to the queue without 
+     * exceeding its capacity in elements, or <code>Integer.MAX_VALUE</code> if
+     * it has none.
+     * @return the number of elements that can be added
+     */
+    public int remainingCapacity() {
+        putLock.lock();
+        try {
+            if (capacity == 0) {
+                return Integer.MAX_VALUE;
+            }
+            return Math.max(0, capacity - count.get() - pendingAdds);
+        } finally {
+            putLock.unlock();
+        }
+    }
+
+    /**
+     * Adds an element to the tail of the queue.
+     * @param element the element to add
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalStateException if the queue is full
+     */
+    public void add(E element) throws IOException {
+        addAll(Collections.singletonList(element));
     }
     
-    /** Writes the current list to a file with given filename */
-    private synchronized void writeListFile(String filename) throws IOException {
-        FileOutputStream fos = new FileOutputStream(filename);
-        
-        if (list.isEmpty()) {
-            fos.flush(); fos.close();
-            return;
+    /**
+     * Adds all given elements to the tail of the queue, in the order they are 
+     * returned by the iterator of the collection. The elements are appended to
+     * the file with a single write.
+     * @param elements the elements to add
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalStateException if the queue has no space for all elements
+     */
+    public void addAll(Collection<? extends E> elements) throws IOException {
+        boolean added;
+        try {
+            added = offerAll(new ArrayList<E>(elements), 0) >= 0;
+        } catch (InterruptedException e) {
+            // offerAll() does not wait without a timeout
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while adding to queue");
         }
-        
-        ObjectOutputStream oos = null;
-        for (Serializable entry: list) {
-            oos = new ObjectOutputStream(fos);
-            oos.writeObject(entry);
+        if (!added) {
+            throw new IllegalStateException("Queue full: " + filename);
         }
-        
-        oos.flush(); oos.close();
-        fos.flush(); fos.close();
     }
     
-    /** Writes defragmented file and renames it to the original filename. */
-    private synchronized void defragmentFile() throws IOException {
-        String defragmentedFileName = filename + TEMPFILE_NAME_POSTFIX;
+    /**
+     * Adds an element to the tail of the queue without waiting for it to be
+     * written. The element is handed to a thread of the queue, which adds all
+     * elements handed to it in the meantime with a single write and, if the 
+     * durability policy requires it, a single force. Actions that depend on 
+     * the returned future run in that thread, unless they are asynchronous.
+     * @param element the element to add
+     * @return a future that completes with the sequence number of the element,
+     *         its position among all elements ever added to the queue, once the
+     *         element is as durable as the durability policy requires. It 
+     *         completes exceptionally with an IOException if an I/O error 
+     *         occurs, or with an IllegalStateException if the queue is full.
+     */
+    public CompletableFuture<Long> addAsync(E element) {
+        CompletableFuture<Long> future = new CompletableFuture<Long>();
+        try {
+            asyncWorker().add(element, future);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+    
+    /**
+     * Removes the head element of the queue without waiting for it to become
+     * available. The element is removed by a thread of the queue, which 
+     * completes the futures in the order they have been returned, as elements
+     * become available. Actions that depend on the returned future run in 
+     * that thread, unless they are asynchronous. An element is only removed 
+     * for a future that has not been cancelled; once an element is being 
+     * removed for it, the future can no longer be cancelled. Futures still 
+     * waiting when the queue is closed fail, and no element is removed for them.
+     * @return a future that completes with the head element of the queue. It 
+     *         completes exceptionally with an IOException if an I/O error 
+     *         occurs or the queue is closed before an element is available.
+     */
+    public CompletableFuture<E> pollAsync() {
+        PollFuture future = new PollFuture();
+        try {
+            asyncWorker().poll(future);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+    
+    /** Returns the thread serving asynchronous adds and polls, starting it first if needed. */
+    private AsyncWorker asyncWorker() throws IOException {
+        synchronized (asyncLock) {
+            if (asyncClosed) {
+                throw new IOException("Queue has been closed: " + filename);
+            }
+            ensureOpen();
+            if (asyncWorker == null) {
+                asyncWorker = new AsyncWorker();
+                asyncWorker.start();
+            }
+            return asyncWorker;
+        }
+    }
+    
+    /** 
+     * Adds all given elements to the tail of the queue, waiting up to the given
+     * time for space to become available for all of them.
+     * @param batch the elements to add
+     * @param timeoutNanos how long to wait, or -1 to wait until there is space
+     * @return the sequence number of the first element, or -1 if the time has
+     *         elapsed before space became available
+     */
+    private long offerAll(List<E> batch, long timeoutNanos) 
+            throws IOException, InterruptedException {
+        int previousCount = -1;
+        long firstSequence = -1;
+        IOException forceFailure = null;
+        PersistentQueueFile.Encoding encoding = null;
+        long batchBytes = 0;
+        putLock.lock();
+        try {
+            if (byteCapacity != 0) {
+                // encoded once, to check their size and to append them
+                ensureOpen();
+                encoding = activeFile.encode(batch);
+                batchBytes = encoding.size;
+            }
+            if (!awaitCapacity(batch.size(), batchBytes, timeoutNanos)) {
+                return -1;
+            }
+            if (batch.isEmpty()) {
+                return nextSequence;
+            }
+            if (writer != null) {
+                // space is reserved until the writer has appended and counted the elements
+                pendingAdds += batch.size();
+                pendingBytes += batchBytes;
+            } else {
+                PersistentQueueFile file = fileForAppend();
+                firstSequence = nextSequence;
+                addEntries(batch, file.appendEntries(batch, encodings(encoding)));
+                try {
+                    syncAlways(file, file.length());
+                } catch (IOException e) {
+                    // the elements are in the file, even if forcing it failed
+                    forceFailure = e;
+                }
+                previousCount = count.getAndAdd(batch.size());
+            }
+        } finally {
+            putLock.unlock();
+        }
+        
+        if (writer != null) {
+            // written and forced to disk together with other pending elements
+            firstSequence = writer.addAll(batch, encoding, batchBytes);
+        } else {
+            if (previousCount == 0) {
+                signalNotEmpty();
+            }
+            notifyListeners();
+        }
+        if (forceFailure != null) {
+            throw forceFailure;
+        }
+        return firstSequence;
+    }
+    
+    /** 
+     * Publishes the new head element and wakes up threads waiting for 
+     * elements. Called without holding the take lock, after the queue has
+     * been empty.
+     */
+    private void signalNotEmpty() {
+        takeLock.lock();
+        try {
+            updateHead();
+            notEmpty.signalAll();
+        } finally {
+            takeLock.unlock();
+        }
+        AsyncWorker worker = asyncWorker;
+        if (worker != null) {
+            worker.wakeUp();
+        }
+    }
+    
+    /** Sets head to the head element of the queue. Called while holding the take lock. */
+    private void updateHead() {
+        synchronized (index) {
+            // the head element is always kept in memory
+            head = count.get() == 0 || list.isEmpty() ? null : list.peekFirst();
+        }
+    }
+    
+    /** 
+     * Wakes up threads waiting for space, if the queue has a capacity. Called 
+     * without holding any lock.
+     */
+    private void signalNotFull() {
+        if (capacity != 0 || byteCapacity != 0) {
+            putLock.lock();
+            try {
+                notFull.signalAll();
+            } finally {
+                putLock.unlock();
+            }
+        }
+    }
+    
+    /** Returns a list holding the given encoding, or no encoding if it is null. */
+    private static List<PersistentQueueFile.Encoding> encodings(
+            PersistentQueueFile.Encoding encoding) {
+        if (encoding == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(encoding);
+    }
+    
+    /** 
+     * Waits until the given elements can be added without exceeding the 
+     * capacity of the queue. Called while holding the put lock.
+     * @param count the number of elements
+     * @param bytes the size of their records, see 
+     *        {@link PersistentQueueFile#encode(Collection)}
+     * @param timeoutNanos how long to wait, or -1 to wait until there is space
+     * @return false if the time has elapsed before space became available
+     */
+    private boolean awaitCapacity(int count, long bytes, long timeoutNanos) 
+            throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (true) {
+            ensureOpen();
+            boolean empty = this.count.get() + pendingAdds == 0;
+            if ((capacity == 0 || this.count.get() + pendingAdds + count <= capacity)
+                    && (byteCapacity == 0 || getTotalSize() + pendingBytes + bytes <= byteCapacity
+                            || (count == 1 && empty))) {
+                return true;
+            }
+            
+            if (timeoutNanos < 0) {
+                notFull.await();
+            } else {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                notFull.awaitNanos(remaining);
+            }
+        }
+    }
+    
+    /** 
+     * Removes and returns the head element, waiting up to the given time for
+     * an element to become available.
+     * @param timeoutNanos how long to wait, or -1 to wait until there is an element
+     * @return head element of this queue, or null if the time has elapsed
+     */
+    private E poll(long timeoutNanos) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (true) {
+            takeLock.lock();
+            try {
+                while (count.get() == 0) {
+                    ensureOpen();
+                    if (timeoutNanos < 0) {
+                        notEmpty.await();
+                    } else {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            return null;
+                        }
+                        notEmpty.awaitNanos(remaining);
+                    }
+                }
+            } finally {
+                takeLock.unlock();
+            }
+            
+            // another consumer may have taken the element in the meantime
+            List<E> entries = remove(1);
+            if (!entries.isEmpty()) {
+                return entries.get(0);
+            }
+        }
+    }
+    
+    /**
+     * Returns the ratio of garbage in the file underlying the queue to the 
+     * size of the records of the elements in the queue. Garbage are the records
+     * of removed elements and head records; file headers and class records are
+     * needed as long as the file is, and do not count. A queue kept in segment
+     * files counts the bytes of all of its segments.
+     * @return the ratio of garbage to live bytes, which is infinite if the 
+     *         queue is empty but its file holds garbage
+     */
+    public double getGarbageRatio() {
+        long garbageBytes = 0;
+        if (segmentSize > 0) {
+            segmentLock.lock();
+            try {
+                for (Segment segment: segments) {
+                    garbageBytes += segment.queueFile.length() - segment.queueFile.overheadSize();
+                }
+            } finally {
+                segmentLock.unlock();
+            }
+        } else {
+            garbageBytes = activeFile.length() - activeFile.overheadSize();
+        }
+        long liveBytes = getTotalSize();
+        garbageBytes = Math.max(0, garbageBytes - liveBytes);
+        if (liveBytes == 0) {
+            return garbageBytes == 0 ? 0 : Double.POSITIVE_INFINITY;
+        }
+        return (double)garbageBytes / liveBytes;
+    }
+    
+    /** Returns the sequence number of the head element of the queue. */
+    long getHeadSequence() {
+        return headSequence;
+    }
+    
+    /** 
+     * Returns up to <code>maxElements</code> elements of the queue without 
+     * removing them, starting with the element with the given sequence number.
+     * Returns no elements if that element has already been removed.
+     */
+    @SuppressWarnings("unchecked")
+    List<E> peek(long sequence, int maxElements) throws IOException {
+        takeLock.lock();
+        try {
+            ensureOpen();
+            long first = sequence - headSequence;
+            int available = (int)Math.max(0, Math.min(maxElements, count.get() - first));
+            List<E> entries = new ArrayList<E>(available);
+            if (first < 0) {
+                return entries;
+            }
+            
+            synchronized (index) {
+                for (int i = (int)first; i < list.size() && entries.size() < available; i++) {
+                    entries.add(list.get(i));
+                }
+            }
+            // elements beyond the memory limit are read without keeping them in memory
+            while (entries.size() < available) {
+                List<Object> read = readEntries((int)first + entries.size(), 
+                        available - entries.size());
+                for (Object entry: read) {
+                    try {
+                        entries.add((E)entry);
+                    } catch (ClassCastException e) {
+                        // convert to a IOException 
+                        throw new IOException(e.toString()); 
+                    } 
+                }
+            }
+            return entries;
+        } finally {
+            takeLock.unlock();
+        }
+    }
+    
+    /** 
+     * Removes all elements with a sequence number lower than the given one that
+     * are still in the queue.
+     */
+    void removeBefore(long sequence) throws IOException {
+        remove(Integer.MAX_VALUE, sequence);
+    }
+    
+    /** 
+     * Registers a listener that is run after elements have been added to the
+     * queue and after the queue has been closed. Listeners run in the thread
+     * that added the elements and must return quickly.
+     */
+    void addListener(Runnable listener) {
+        listeners.add(listener);
+    }
+    
+    /** Unregisters a listener registered by {@link #addListener(Runnable)}. */
+    void removeListener(Runnable listener) {
+        listeners.remove(listener);
+    }
+    
+    /** Runs all registered listeners. Called without holding any lock. */
+    private void notifyListeners() {
+        for (Runnable listener: listeners) {
+            listener.run();
+        }
+    }
+    
+    /**
+     * Returns the statistics of this queue.
+     * @return the statistics of this queue
+     */
+    public PersistentQueueStatistics getStatistics() {
+        return statistics;
+    }
+    
+    /**
+     * Closes the file underlying the queue. Elements can no longer be added or 
+     * removed afterwards. Closing a queue that is already closed has no effect.
+     * @throws IOException if an I/O error occurs
+     */
+    public void close() throws IOException {
+        AsyncWorker worker;
+        synchronized (asyncLock) {
+            worker = asyncWorker;
+            asyncClosed = true;
+        }
+        if (worker != null) {
+            // let the worker add all elements handed to it first
+            worker.shutdown();
+        }
+        if (writer != null) {
+            // let the writer finish all pending elements first
+            writer.shutdown();
+        }
+        if (defragmenter != null) {
+            defragmenter.shutdown();
+        }
+        closeFile();
+        notifyListeners();
+    }
+    
+    /** Closes the file underlying the queue, forcing it to disk if required. */
+    private void closeFile() throws IOException {
+        putLock.lock();
+        try {
+            takeLock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                notFull.signalAll();
+                notEmpty.signalAll();
+                if (syncTimer != null) {
+                    syncTimer.cancel();
+                }
+                if (activeFile != null) {
+                    try {
+                        writeCheckpoint();
+                    } finally {
+                        activeFile.close();
+                    }
+                }
+            } finally {
+                takeLock.unlock();
+            }
+        } finally {
+            putLock.unlock();
+        }
+    }
+    
+    /** 
+     * Throws an IOException if the queue has been closed, or if a background 
+     * force has failed and changes may not have reached the disk.
+     */
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Queue has been closed: " + filename);
+        }
+        if (syncFailure != null) {
+            throw new IOException("Forcing queue file to disk failed: " + filename, syncFailure);
+        }
+        if (defragmentFailure != null) {
+            throw new IOException("Defragmenting queue file failed: " + filename, 
+                    defragmentFailure);
+        }
+    }
+    
+    /** 
+     * Records the removal of the given number of head elements in the file, 
+     * after they have been removed from the list. Deletes consumed segments if
+     * needed. Called while holding the take lock.
+     */
+    private void removeHead(int count) throws IOException {
+        headSequence += count;
+        removesSinceCheckpoint += count;
+        if (segmentSize > 0) {
+            // record the new head in the newest segment, then drop all segments we've moved past
+            segmentLock.lock();
+            try {
+                activeFile.appendHead(headSequence);
+            } finally {
+                segmentLock.unlock();
+            }
+            deleteConsumedSegments();
+        } else {
+            // append the new head to the file, it is defragmented later if needed
+            removesSinceDefragment += count;
+            activeFile.appendHead(headSequence);
+            long now = System.nanoTime();
+            long fileSize = activeFile.length();
+            long liveBytes = getTotalSize();
+            long garbageBytes = fileSize - activeFile.overheadSize() - liveBytes;
+            if (defragmentPolicy.isDue(removesSinceDefragment, 
+                    (now - lastDefragmentNanos) / 1000000, fileSize, 
+                    Math.max(0, garbageBytes), liveBytes)) {
+                removesSinceDefragment = 0;
+                lastDefragmentNanos = now;
+                defragmenter.request();
+            }
+        }
+    }
+    
+    /** 
+     * Returns true if a checkpoint should be written. Called while holding the
+     * take lock.
+     */
+    private boolean isMaintenanceDue() {
+        return removesSinceCheckpoint >= CHECKPOINT_INTERVAL;
+    }
+    
+    /** 
+     * Writes a checkpoint if due. This needs the put and the take lock, so it
+     * is called without holding any lock.
+     */
+    private void maintain() throws IOException {
+        putLock.lock();
+        try {
+            takeLock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                if (removesSinceCheckpoint >= CHECKPOINT_INTERVAL) {
+                    writeCheckpoint();
+                }
+            } finally {
+                takeLock.unlock();
+            }
+        } finally {
+            putLock.unlock();
+        }
+    }
+    
+    /** 
+     * Writes a checkpoint with the position of the head element, after forcing
+     * the records it refers to to disk if required. Called while holding both
+     * locks.
+     */
+    private void writeCheckpoint() throws IOException {
+        if (durability != PersistentQueueDurability.NONE) {
+            activeFile.sync(activeFile.length());
+        }
+        removesSinceCheckpoint = 0;
+        
+        // the file holding the head element, and the offset of its entry record
+        PersistentQueueFile headFile = activeFile;
+        long number = -1;
+        if (segmentSize > 0) {
+            Segment headSegment = null;
+            for (Segment segment: segments) {
+                if (segment.firstSequence <= headSequence) {
+                    headSegment = segment;
+                }
+            }
+            headFile = headSegment.queueFile;
+            number = headSegment.number;
+        }
+        long offset = index.size() == 0 ? headFile.length() : index.getOffset(0);
+        
+        PersistentQueueCheckpoint checkpoint = new PersistentQueueCheckpoint(number, 
+                headFile.getFirstSequence(), headFile.getHeadSequence(), headFile.getId(), 
+                offset, headSequence, headFile.describeClassesBefore(offset));
+        checkpoint.write(new File(filename + CHECKPOINT_NAME_POSTFIX), 
+                durability != PersistentQueueDurability.NONE);
+    }
+    
+    /** 
+     * Forces the given file to disk up to the given position if the durability
+     * policy is ALWAYS. Called while holding the lock of the change.
+     */
+    private void syncAlways(PersistentQueueFile file, long position) throws IOException {
+        if (durability == PersistentQueueDurability.ALWAYS) {
+            file.sync(position);
+        }
+    }
+    
+    /** 
+     * Forces the given file to disk up to the given position if the durability
+     * policy is GROUP_COMMIT. Called without holding any lock, so that threads
+     * changing the queue concurrently can share a single force.
+     */
+    private void syncGroupCommit(PersistentQueueFile file, long position) throws IOException {
+        if (durability == PersistentQueueDurability.GROUP_COMMIT) {
+            file.sync(position);
+        }
+    }
+    
+    /** Starts the background thread forcing changes to disk for an INTERVAL policy. */
+    private void startSyncTimer() {
+        long interval = durability.getIntervalMillis();
+        syncTimer = new Timer("PersistentQueue sync " + filename, true);
+        syncTimer.schedule(new TimerTask() {
+            public void run() {
+                try {
+                    if (closed) {
+                        return;
+                    }
+                    PersistentQueueFile file = activeFile;
+                    file.sync(file.length());
+                } catch (IOException e) {
+                    syncFailure = e;
+                    cancel();
+                }
+            }
+        }, interval, interval);
+    }
+    
+    /** Creates an empty file with no content (0 bytes size) with given filename. */
+    private void createEmptyFile(String filename) throws IOException {
+        File emptyFile = new File(filename);
+        if (!emptyFile.createNewFile()) {
+            throw new IOException("Could not create new file: " + filename);
+        }
+    }
+    
+    /** 
+     * Completely re-read all elements from the file with given filename.
+     * Clears any elements that are still in queue when method is called.
+     * */
+    private void readStateFromFile(String filename) throws IOException {
+        // clear the list - we're reading it afresh from the file
+        list.clear();
+        index.clear();
+        headSequence = 0;
+        nextSequence = 0;
+        
+        File file = new File(filename);
+        if (PersistentQueueFile.isFormatted(file)) {
+            activeFile = PersistentQueueFile.open(file, statistics, memoryMapped, codec);
+            replayFiles(Collections.singletonList(activeFile), true);
+        } else {
+            // written by an earlier version: read it, then convert it to the current format
+            replayLegacyFile(filename);
+            defragmentFile();
+        }
+    }
+    
+    /** 
+     * Completely re-read all elements from the segment files of this queue, 
+     * oldest segment first. Creates the first segment if there is none yet.
+     */
+    private void readStateFromSegments() throws IOException {
+        // clear the list - we're reading it afresh from the segments
+        list.clear();
+        index.clear();
+        segments.clear();
+        headSequence = 0;
+        nextSequence = 0;
+        
+        // collect all segment files that belong to this queue, ordered by number
+        File file = new File(filename).getAbsoluteFile();
+        String prefix = file.getName() + SEGMENT_NAME_INFIX;
+        File[] files = file.getParentFile().listFiles();
+        if (files == null) {
+            throw new IOException("Could not list segment files of " + filename);
+        }
+        TreeMap<Long, File> segmentFiles = new TreeMap<Long, File>();
+        for (File segmentFile: files) {
+            String name = segmentFile.getName();
+            if (name.startsWith(prefix)) {
+                try {
+                    long number = Long.parseLong(name.substring(prefix.length()));
+                    segmentFiles.put(number, segmentFile);
+                } catch (NumberFormatException e) {
+                    // not a segment file, e.g. a temporary file
+                }
+            }
+        }
+        
+        activeFile = null;
+        List<PersistentQueueFile> queueFiles = new ArrayList<PersistentQueueFile>();
+        for (Map.Entry<Long, File> segmentFile: segmentFiles.entrySet()) {
+            File segment = segmentFile.getValue();
+            if (segment.length() < PersistentQueueFile.HEADER_SIZE) {
+                // we crashed while starting this segment, its header is incomplete
+                deleteFile(segment);
+                continue;
+            }
+            
+            if (!PersistentQueueFile.isFormatted(segment)) {
+                throw new IOException("Not a queue file: " + segment);
+            }
+            activeFile = PersistentQueueFile.open(segment, statistics, memoryMapped, codec);
+            queueFiles.add(activeFile);
+            segments.add(new Segment(segment, segmentFile.getKey(), 
+                    activeFile.getFirstSequence(), activeFile));
+        }
+        
+        // only the newest segment is appended to
+        for (int i = 0; i < queueFiles.size() - 1; i++) {
+            queueFiles.get(i).seal();
+        }
+        replayFiles(queueFiles, true);
+        
+        if (activeFile == null) {
+            startSegment(segments.isEmpty() ? 0 : segments.getLast().number + 1);
+        }
+        
+        // the head is the first element left after replaying all segments
+        headSequence = nextSequence - index.size();
+    }
+    
+    @SuppressWarnings("unchecked")
+    /** 
+     * Reads all records from the given files and applies them to the list, 
+     * in addition to the elements already in it. The files are read twice: 
+     * the first pass determines the head of the queue without deserializing 
+     * any element, the second pass deserializes only the elements at or after
+     * the head. Recovery time thus depends on the number of elements in the 
+     * queue rather than the number of elements ever added to it. If there is
+     * a checkpoint for one of the files, both passes start at the checkpoint,
+     * and the files before it are not read at all.
+     * @param queueFiles the files to read, in the order they have been written
+     * @param first true if the files are the first (or only) ones making up the queue
+     */
+    private void replayFiles(List<PersistentQueueFile> queueFiles, boolean first)
+            throws IOException {
+        if (first) {
+            queueFiles = restoreCheckpoint(queueFiles);
+        }
+        
+        // first pass: find the head and the sequence number after each file
+        long sequence = nextSequence;
+        for (PersistentQueueFile queueFile: queueFiles) {
+            if (first) {
+                // elements before this file have been deleted along with their files
+                sequence = queueFile.getFirstSequence();
+                first = false;
+            } else if (queueFile.getFirstSequence() != sequence) {
+                throw new IOException("Segment file " + queueFile.getFile() + 
+                        " does not continue the previous segment");
+            }
+            headSequence = Math.max(headSequence, queueFile.getHeadSequence());
+            
+            queueFile.scan();
+            headSequence = queueFile.applyHeadRecords(headSequence);
+            sequence += queueFile.getEntryCount();
+        }
+        dropRemovedEntries();
+        
+        // second pass: deserialize the elements that have not been removed
+        for (PersistentQueueFile queueFile: queueFiles) {
+            long skipEntries = Math.max(0, headSequence - queueFile.getFirstSequence());
+            if (skipEntries >= queueFile.getEntryCount()) {
+                nextSequence = queueFile.getFirstSequence() + queueFile.getEntryCount();
+                continue;
+            }
+            
+            nextSequence = queueFile.getFirstSequence() + skipEntries;
+            PersistentQueueFile.Reader reader = queueFile.reader(skipEntries);
+            try {
+                while (reader.next()) {
+                    try {
+                        // elements beyond the memory limit are not deserialized
+                        if (isListComplete()) {
+                            list.add((E)reader.getEntry());
+                        }
+                        index.add(reader.getOffset(), reader.getSize());
+                        nextSequence++;
+                    } catch (ClassCastException e) {
+                        // convert to a IOException 
+                        throw new IOException(e.toString()); 
+                    } 
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        
+        // the head is the first element left after replaying all files
+        headSequence = nextSequence - index.size();
+    }
+    
+    /** 
+     * Reads the checkpoint of the queue, if any, and restores it in the file 
+     * it refers to.
+     * @param queueFiles all files making up the queue, in the order they have been written
+     * @return the files starting with the one the checkpoint has been restored 
+     *         in, or all files if there is no checkpoint that matches any of them
+     */
+    private List<PersistentQueueFile> restoreCheckpoint(List<PersistentQueueFile> queueFiles) 
+            throws IOException {
+        PersistentQueueCheckpoint checkpoint = 
+            PersistentQueueCheckpoint.read(new File(filename + CHECKPOINT_NAME_POSTFIX));
+        if (checkpoint == null) {
+            return queueFiles;
+        }
+        
+        for (int i = 0; i < queueFiles.size(); i++) {
+            PersistentQueueFile queueFile = queueFiles.get(i);
+            long number = segmentSize > 0 ? segments.get(i).number : -1;
+            if (checkpoint.matches(queueFile, number)) {
+                // elements in the files before this one have all been removed
+                return queueFile.restore(checkpoint) 
+                    ? queueFiles.subList(i, queueFiles.size()) : queueFiles;
+            }
+        }
+        return queueFiles;
+    }
+    
+    @SuppressWarnings("unchecked")
+    /** 
+     * Reads all entries from the file with given filename, which has been 
+     * written by an earlier version as a sequence of serialized objects, and 
+     * applies them to the list. 
+     */
+    private void replayLegacyFile(String filename) throws IOException {
+        FileInputStream fis = new FileInputStream(filename);
+        
+        // loop over all data that is in that file
+        while (fis.available() > 0) { 
+            Serializable pqentry;
+        
+            // a new object input stream to read in the next object
+            ObjectInputStream ois = new ObjectInputStream(fis);
+            try {
+                pqentry = (Serializable)ois.readObject();
+            } catch (ClassNotFoundException e) {
+                // convert to a IOException 
+                throw new IOException(e.toString()); 
+            } catch (ClassCastException e) {
+                // convert to a IOException 
+                throw new IOException(e.toString()); 
+            } catch (StreamCorruptedException e) {
+                throw new IOException(e.toString());
+            }
+            
+            // now adjust our internal data structures by adding this object:
+            if (pqentry instanceof PersistentQueueDeleteMarker) {
+                headSequence++;
+            } else { 
+                try {
+                    list.add((E)pqentry);
+                    index.add(-1, 0);
+                    nextSequence++;
+                } catch (ClassCastException e) {
+                    // convert to a IOException 
+                    throw new IOException(e.toString()); 
+                } 
+            } 
+            
+            dropRemovedEntries();
+        }
+
+        fis.close();
+    }
+    
+    /** Drops all elements from the queue that the head has already moved past. */
+    private void dropRemovedEntries() {
+        while (index.size() > 0 && nextSequence - index.size() < headSequence) {
+            if (!list.isEmpty()) {
+                list.removeFirst();
+            }
+            index.removeFirst(1);
+        }
+    }
+    
+    /** 
+     * Returns true if all elements of the queue are in the list, and another
+     * element can be added to it without exceeding the memory limit.
+     */
+    private boolean isListComplete() {
+        return list.size() == index.size() && (memoryLimit == 0 || list.size() < memoryLimit);
+    }
+    
+    /** 
+     * Adds elements that have been appended to the file at the given positions
+     * to the tail of the queue, keeping them in memory as long as the memory
+     * limit permits. Called while holding the put lock. The elements are not 
+     * counted yet, see {@link #count}.
+     */
+    private void addEntries(List<E> elements, PersistentQueueIndex entryIndex) {
+        synchronized (index) {
+            for (int i = 0; i < elements.size(); i++) {
+                if (isListComplete()) {
+                    list.add(elements.get(i));
+                }
+                index.add(entryIndex.getOffset(i), entryIndex.getSize(i));
+            }
+        }
+        nextSequence += elements.size();
+    }
+    
+    /** Returns the size of the records of all elements in the queue in bytes. */
+    private long getTotalSize() {
+        synchronized (index) {
+            return index.getTotalSize();
+        }
+    }
+    
+    /** 
+     * Drops elements from the tail of the list until it holds no more elements
+     * than the memory limit. Elements read from files written by earlier 
+     * versions are kept.
+     */
+    private void trimList() {
+        while (memoryLimit > 0 && list.size() > memoryLimit 
+                && index.getOffset(list.size() - 1) >= 0) {
+            list.removeLast();
+        }
+    }
+    
+    @SuppressWarnings("unchecked")
+    /** 
+     * Reads elements that are only kept in the file into the list, until it
+     * holds the given number of elements or all elements of the queue. Called
+     * while holding the take lock; as long as the list does not hold all 
+     * elements, no other thread adds to it.
+     */
+    private void readIntoList(int count) throws IOException {
+        while (true) {
+            int first;
+            synchronized (index) {
+                first = list.size();
+                count = Math.min(count, index.size());
+            }
+            if (first >= count) {
+                return;
+            }
+            
+            List<Object> entries = readEntries(first, count - first);
+            synchronized (index) {
+                for (Object entry: entries) {
+                    try {
+                        list.add((E)entry);
+                    } catch (ClassCastException e) {
+                        // convert to a IOException 
+                        throw new IOException(e.toString()); 
+                    } 
+                }
+            }
+        }
+    }
+    
+    /** 
+     * Reads up to the given number of elements from the file, starting with 
+     * the element with index <code>first</code> in the queue. Only reads from the file
+     * holding that element, so fewer elements may be returned. Called while 
+     * holding the take lock.
+     */
+    private List<Object> readEntries(int first, int count) throws IOException {
+        long sequence = headSequence + first;
+        PersistentQueueFile file = activeFile;
+        long end = nextSequence;
+        if (segmentSize > 0) {
+            segmentLock.lock();
+            try {
+                // the element is in the last segment started at or before it
+                for (Segment segment: segments) {
+                    if (segment.firstSequence > sequence) {
+                        end = segment.firstSequence;
+                        break;
+                    }
+                    file = segment.queueFile;
+                }
+            } finally {
+                segmentLock.unlock();
+            }
+        }
+        long offset;
+        synchronized (index) {
+            offset = index.getOffset(first);
+        }
+        return file.readEntries(offset, (int)Math.min(count, end - sequence));
+    }
+    
+    /** 
+     * Returns the file that elements should be appended to. Starts a new 
+     * segment first if the newest one is full. Called while holding the put lock.
+     */
+    private PersistentQueueFile fileForAppend() throws IOException {
+        if (segmentSize > 0 && activeFile.length() >= segmentSize) {
+            segmentLock.lock();
+            try {
+                startSegment(segments.getLast().number + 1);
+            } finally {
+                segmentLock.unlock();
+            }
+        }
+        return activeFile;
+    }
+    
+    /** 
+     * Creates a new segment file with given number and makes it the newest segment.
+     * Called while holding the put lock.
+     */
+    private Segment startSegment(long number) throws IOException {
+        segmentLock.lock();
+        try {
+            String segmentFileName = filename + SEGMENT_NAME_INFIX + number;
+            createEmptyFile(segmentFileName);
+            if (activeFile != null) {
+                // the segment will not be written again, so it has to be on disk now
+                if (durability != PersistentQueueDurability.NONE) {
+                    activeFile.sync(activeFile.length());
+                }
+                activeFile.seal();
+            }
+            activeFile = PersistentQueueFile.create(new File(segmentFileName), 
+                    nextSequence, headSequence, statistics, memoryMapped, codec);
+            
+            Segment segment = new Segment(activeFile.getFile(), number, nextSequence, activeFile);
+            segments.add(segment);
+            return segment;
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+    
+    /** 
+     * Deletes all segments whose elements have all been removed from the queue.
+     * Called while holding the take lock.
+     */
+    private void deleteConsumedSegments() throws IOException {
+        segmentLock.lock();
+        try {
+            if (segments.size() > 1 && segments.get(1).firstSequence <= headSequence
+                    && durability != PersistentQueueDurability.NONE) {
+                // the head record has to be on disk before the elements are gone
+                activeFile.sync(activeFile.length());
+            }
+            while (segments.size() > 1 && segments.get(1).firstSequence <= headSequence) {
+                deleteSegment(segments.removeFirst());
+            }
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+    
+    /** Replaces all segments with a single new, empty one. Called while holding both locks. */
+    private void deleteAllSegments() throws IOException {
+        segmentLock.lock();
+        try {
+            // the header of the new segment marks all older elements as removed, 
+            // so it is safe to crash before the older segments are deleted
+            startSegment(segments.getLast().number + 1);
+            while (segments.size() > 1) {
+                deleteSegment(segments.removeFirst());
+            }
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+    
+    /** Closes the file of the given segment, which is no longer used, and deletes it. */
+    private void deleteSegment(Segment segment) throws IOException {
+        segment.queueFile.close();
+        deleteFile(segment.file);
+    }
+    
+    /** Deletes the given file. */
+    private void deleteFile(File file) throws IOException {
+        if (!file.delete()) {
+            throw new IOException("Could not delete file: " + file);
+        }
+    }
+    
+    /** 
+     * Writes all elements of the queue to a file with given filename. Called 
+     * while holding both locks.
+     */
+    private PersistentQueueFile writeListFile(String filename) throws IOException {
+        PersistentQueueFile listFile = PersistentQueueFile.create(new File(filename), 
+                headSequence, headSequence, statistics, memoryMapped, codec);
+        
+        PersistentQueueIndex listIndex = new PersistentQueueIndex();
+        if (!list.isEmpty()) {
+            listIndex.addAll(listFile.appendEntries(list));
+        }
+        
+        // copy the elements that are only kept in the old file, a batch at a time
+        int batchSize = memoryLimit > 0 ? memoryLimit : index.size();
+        for (int i = list.size(); i < index.size(); ) {
+            List<Object> entries = readEntries(i, batchSize);
+            listIndex.addAll(listFile.appendEntries(entries));
+            i += entries.size();
+        }
+        synchronized (index) {
+            index.clear();
+            index.addAll(listIndex);
+        }
+        
+        return listFile;
+    }
+    
+    /** 
+     * Writes defragmented file and renames it to the original filename. Called
+     * while holding both locks.
+     */
+    private void defragmentFile() throws IOException {
+        String defragmentedFileName = filename + TEMPFILE_NAME_POSTFIX;
         
         // write out defragmented file
-        writeListFile(defragmentedFileName);
+        PersistentQueueFile defragmentedFile = writeListFile(defragmentedFileName);
+        replaceFile(defragmentedFile);
+    }
+    
+    /** 
+     * Defragments the file without holding up other threads. The records of
+     * the elements in the queue are a contiguous range at the end of the file,
+     * which is copied to the temporary file as it is, without deserializing
+     * anything and without holding any lock (see 
+     * {@link PersistentQueueFile#transferRecords}). Only the records appended 
+     * in the meantime are copied while holding both locks, followed by a head
+     * record for the elements removed in the meantime, before the temporary 
+     * file replaces the original file. Called by the defragmenter thread.
+     */
+    private void defragmentInBackground() throws IOException {
+        defragmentLock.lock();
+        try {
+            PersistentQueueFile originalFile;
+            long firstSequence;
+            long endSequence;
+            long startOffset;
+            long endOffset;
+            putLock.lock();
+            try {
+                takeLock.lock();
+                try {
+                    if (closed || defragmenter.isCancelled()) {
+                        return;
+                    }
+                    originalFile = activeFile;
+                    firstSequence = headSequence;
+                    endSequence = nextSequence;
+                    endOffset = originalFile.length();
+                    synchronized (index) {
+                        startOffset = index.size() == 0 ? endOffset : index.getOffset(0);
+                    }
+                } finally {
+                    takeLock.unlock();
+                }
+            } finally {
+                putLock.unlock();
+            }
+            
+            PersistentQueueFile defragmentedFile = PersistentQueueFile.create(
+                    new File(filename + TEMPFILE_NAME_POSTFIX), firstSequence, firstSequence, 
+                    statistics, memoryMapped, codec);
+            boolean replaced = false;
+            try {
+                PersistentQueueIndex defragmentedIndex = defragmentedFile.transferRecords(
+                        originalFile, startOffset, endOffset);
+                if (defragmentedIndex == null || defragmenter.isCancelled()) {
+                    return;
+                }
+                
+                // force the copied records before locking, which leaves little to force
+                // when the file is replaced
+                defragmentedFile.sync(defragmentedFile.length());
+                
+                putLock.lock();
+                try {
+                    takeLock.lock();
+                    try {
+                        if (closed || activeFile != originalFile) {
+                            return;
+                        }
+                        long pauseStart = System.nanoTime();
+                        if (headSequence >= endSequence) {
+                            // all copied elements have been removed in the meantime
+                            defragmentedFile.close();
+                            deleteFile(defragmentedFile.getFile());
+                            replaced = true;
+                            defragmentFile();
+                        } else {
+                            // copy the elements added in the meantime, then record the removed ones
+                            defragmentedIndex.addAll(defragmentedFile.transferRecords(
+                                    originalFile, endOffset, originalFile.length()));
+                            int removed = (int)(headSequence - firstSequence);
+                            if (removed > 0) {
+                                defragmentedFile.appendHead(headSequence);
+                            }
+                            
+                            defragmentedIndex.removeFirst(removed);
+                            replaced = true;
+                            replaceFile(defragmentedFile);
+                            synchronized (index) {
+                                index.clear();
+                                index.addAll(defragmentedIndex);
+                            }
+                        }
+                        statistics.recordDefragment(System.nanoTime() - pauseStart);
+                    } finally {
+                        takeLock.unlock();
+                    }
+                } finally {
+                    putLock.unlock();
+                }
+            } finally {
+                if (!replaced) {
+                    defragmentedFile.close();
+                    deleteFile(defragmentedFile.getFile());
+                }
+            }
+        } finally {
+            defragmentLock.unlock();
+        }
+    }
+    
+    /** 
+     * Renames the given defragmented file to the original filename and makes
+     * it the file that is appended to. The defragmented file is forced to 
+     * disk first, whatever the durability policy, and replaces the original
+     * file with an atomic rename, so that a crash leaves either of them. 
+     * Called while holding both locks.
+     */
+    private void replaceFile(PersistentQueueFile defragmentedFile) throws IOException {
+        File originalFile = new File(filename);
+        defragmentedFile.sync(defragmentedFile.length());
+        if (activeFile != null) {
+            activeFile.close();
+        }
+        
+        // the checkpoint refers to the original file
+        File checkpointFile = new File(filename + CHECKPOINT_NAME_POSTFIX);
+        if (checkpointFile.exists()) {
+            deleteFile(checkpointFile);
+        }
         
-        File defragmentedFile = new File(defragmentedFileName);
+        defragmentedFile.renameTo(originalFile);
+        activeFile = defragmentedFile;
+    }
+    
+    /** 
+     * Resolves a defragmentation that was interrupted by a crash, which can 
+     * leave a temporary file behind. As long as the original file exists, 
+     * it has not been replaced yet, and the temporary file is incomplete. 
+     * Earlier versions deleted the original file before renaming the 
+     * temporary file, in which case the temporary file is complete and takes
+     * the place of the original file.
+     */
+    private void resolveInterruptedDefragment() throws IOException {
         File originalFile = new File(filename);
+        File temporaryFile = new File(filename + TEMPFILE_NAME_POSTFIX);
+        if (!temporaryFile.exists()) {
+            return;
+        }
+        if (originalFile.exists()) {
+            deleteFile(temporaryFile);
+        } else {
+            File checkpointFile = new File(filename + CHECKPOINT_NAME_POSTFIX);
+            if (checkpointFile.exists()) {
+                deleteFile(checkpointFile);
+            }
+            PersistentQueueFile.move(temporaryFile, originalFile);
+        }
+    }
+    
+    /** 
+     * Writer thread for a GROUP_COMMIT policy. Threads calling {@link #add} hand 
+     * their element to the writer and wait. The writer takes all elements that 
+     * are pending, appends them with a single write, forces the file to disk 
+     * once and then releases all threads that handed in these elements.
+     */
+    private class GroupCommitWriter extends Thread {
+        /** Guards pending and stopping. */
+        private final Object lock = new Object();
+        
+        /** Elements handed in since the writer last took a batch. */
+        private Batch pending = new Batch();
+        
+        /** Has shutdown() been called? */
+        private boolean stopping = false;
+        
+        GroupCommitWriter() {
+            super("PersistentQueue writer " + filename);
+            setDaemon(true);
+        }
+        
+        /** 
+         * Hands elements to the writer and waits until they are on disk. Space
+         * for the elements has to be reserved in pendingAdds and pendingBytes.
+         * @param encoding the elements encoded in advance, or null
+         * @param bytes the space reserved in pendingBytes
+         * @return the sequence number of the first element
+         */
+        long addAll(List<E> elements, PersistentQueueFile.Encoding encoding, long bytes) 
+                throws IOException {
+            Batch batch = null;
+            int position = 0;
+            synchronized (lock) {
+                if (!stopping) {
+                    batch = pending;
+                    position = batch.elements.size();
+                    if (encoding != null && batch.encoded == position) {
+                        batch.encodings.add(encoding);
+                        batch.encoded += elements.size();
+                    }
+                    batch.elements.addAll(elements);
+                    batch.bytes += bytes;
+                    lock.notifyAll();
+                }
+            }
+            if (batch == null) {
+                putLock.lock();
+                try {
+                    pendingAdds -= elements.size();
+                    pendingBytes -= bytes;
+                    notFull.signalAll();
+                } finally {
+                    putLock.unlock();
+                }
+                throw new IOException("Queue has been closed: " + filename);
+            }
+            batch.await();
+            return batch.firstSequence + position;
+        }
+        
+        /** 
+         * Counts appended elements, unless the queue has been cleared since
+         * they were appended, and releases the space reserved for them.
+         */
+        private void publish(int added, int appendedClears) {
+            int previousCount = -1;
+            putLock.lock();
+            try {
+                pendingAdds -= added;
+                if (appendedClears == clears) {
+                    previousCount = count.getAndAdd(added);
+                }
+                notFull.signalAll();
+            } finally {
+                putLock.unlock();
+            }
+            if (previousCount == 0) {
+                signalNotEmpty();
+            }
+            notifyListeners();
+        }
+        
+        /** Writes all pending elements, then stops the writer. */
+        void shutdown() throws IOException {
+            synchronized (lock) {
+                stopping = true;
+                lock.notifyAll();
+            }
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while closing queue");
+            }
+        }
+        
+        public void run() {
+            while (true) {
+                Batch batch;
+                synchronized (lock) {
+                    while (pending.elements.isEmpty() && !stopping) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            // only shutdown() stops the writer
+                        }
+                    }
+                    if (pending.elements.isEmpty()) {
+                        return;
+                    }
+                    batch = pending;
+                    pending = new Batch();
+                }
+                
+                try {
+                    PersistentQueueFile file;
+                    long position;
+                    int appendedClears;
+                    putLock.lock();
+                    try {
+                        try {
+                            ensureOpen();
+                            file = fileForAppend();
+                            batch.firstSequence = nextSequence;
+                            addEntries(batch.elements, 
+                                    file.appendEntries(batch.elements, batch.encodings));
+                            position = file.length();
+                            appendedClears = clears;
+                        } catch (IOException e) {
+                            // the elements have not been appended
+                            pendingAdds -= batch.elements.size();
+                            notFull.signalAll();
+                            throw e;
+                        } finally {
+                            // appended elements count in the size of the queue instead
+                            pendingBytes -= batch.bytes;
+                        }
+                    } finally {
+                        putLock.unlock();
+                    }
+                    try {
+                        file.sync(position);
+                    } finally {
+                        // count the elements once they are on disk; their space stays
+                        // reserved until then
+                        publish(batch.elements.size(), appendedClears);
+                    }
+                    batch.finish(null);
+                } catch (IOException e) {
+                    batch.finish(e);
+                }
+            }
+        }
+    }
+    
+    /** 
+     * Defragmenter thread for a queue kept in a single file. Removing threads
+     * request defragmentation, which the defragmenter then runs without 
+     * holding up other threads for longer than it takes to switch files.
+     */
+    private class Defragmenter extends Thread {
+        /** Guards requested and stopping. */
+        private final Object lock = new Object();
+        
+        /** Has defragmentation been requested since it last started? */
+        private boolean requested = false;
+        
+        /** Has shutdown() been called? */
+        private boolean stopping = false;
+        
+        /** Should the current defragmentation be abandoned? */
+        private volatile boolean cancelled = false;
+        
+        Defragmenter() {
+            super("PersistentQueue defragmenter " + filename);
+            setDaemon(true);
+        }
+        
+        /** Requests defragmentation of the file. */
+        void request() {
+            synchronized (lock) {
+                requested = true;
+                lock.notifyAll();
+            }
+        }
+        
+        /** 
+         * Abandons the current defragmentation, if any, as soon as possible. 
+         * The next one runs when it is requested again.
+         */
+        void cancel() {
+            cancelled = true;
+        }
+        
+        /** Returns true if the current defragmentation should be abandoned. */
+        boolean isCancelled() {
+            return cancelled;
+        }
+        
+        /** Abandons the current defragmentation, then stops the defragmenter. */
+        void shutdown() throws IOException {
+            synchronized (lock) {
+                stopping = true;
+                cancelled = true;
+                lock.notifyAll();
+            }
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while closing queue");
+            }
+        }
+        
+        public void run() {
+            while (true) {
+                synchronized (lock) {
+                    while (!requested && !stopping) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            // only shutdown() stops the defragmenter
+                        }
+                    }
+                    if (stopping) {
+                        return;
+                    }
+                    requested = false;
+                }
+                
+                try {
+                    defragmentInBackground();
+                } catch (IOException e) {
+                    defragmentFailure = e;
+                    return;
+                } finally {
+                    synchronized (lock) {
+                        if (!stopping) {
+                            cancelled = false;
+                        }
+                    }
+                }
+            }
+        }
+    }
+    
+    /** 
+     * Thread serving {@link #addAsync} and {@link #pollAsync}. It adds all 
+     * elements handed in since it last woke up with a single append, and
+     * removes as many elements as there are futures waiting for one with a 
+     * single head record. Futures are completed in this thread.
+     */
+    private class AsyncWorker extends Thread {
+        /** Guards all fields below. */
+        private final Object lock = new Object();
+        
+        /** Elements handed to addAsync since the worker last took them. */
+        private List<E> adds = new ArrayList<E>();
+        
+        /** Futures of the elements in adds, in the same order. */
+        private List<CompletableFuture<Long>> addFutures = new ArrayList<CompletableFuture<Long>>();
+        
+        /** Futures waiting for an element, in the order they were returned. */
+        private final LinkedList<PollFuture> polls = new LinkedList<PollFuture>();
+        
+        /** Has shutdown() been called? */
+        private boolean stopping = false;
+        
+        AsyncWorker() {
+            super("PersistentQueue async worker " + filename);
+            setDaemon(true);
+        }
+        
+        /** Hands an element to the worker. */
+        void add(E element, CompletableFuture<Long> future) throws IOException {
+            synchronized (lock) {
+                if (stopping) {
+                    throw new IOException("Queue has been closed: " + filename);
+                }
+                adds.add(element);
+                addFutures.add(future);
+                lock.notifyAll();
+            }
+        }
+        
+        /** Hands a future waiting for an element to the worker. */
+        void poll(PollFuture future) throws IOException {
+            synchronized (lock) {
+                if (stopping) {
+                    throw new IOException("Queue has been closed: " + filename);
+                }
+                polls.add(future);
+                lock.notifyAll();
+            }
+        }
+        
+        /** Wakes the worker up after elements have become available. */
+        void wakeUp() {
+            synchronized (lock) {
+                lock.notifyAll();
+            }
+        }
+        
+        /** 
+         * Adds all elements handed to the worker, then fails the futures still 
+         * waiting for an element and stops the worker.
+         */
+        void shutdown() throws IOException {
+            synchronized (lock) {
+                stopping = true;
+                lock.notifyAll();
+            }
+            if (Thread.currentThread() == this) {
+                // closed from a dependent action; the worker stops once it returns
+                return;
+            }
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while closing queue");
+            }
+        }
+        
+        public void run() {
+            while (true) {
+                List<E> elements;
+                List<CompletableFuture<Long>> futures;
+                synchronized (lock) {
+                    while (adds.isEmpty() && !stopping 
+                            && (polls.isEmpty() || count.get() == 0)) {
+                        try {
+                            lock.wait();
+                        } catch (InterruptedException e) {
+                            // only shutdown() stops the worker
+                        }
+                    }
+                    if (adds.isEmpty() && stopping) {
+                        break;
+                    }
+                    elements = adds;
+                    futures = addFutures;
+                    adds = new ArrayList<E>();
+                    addFutures = new ArrayList<CompletableFuture<Long>>();
+                }
+                
+                if (!elements.isEmpty()) {
+                    addAll(elements, futures);
+                }
+                if (count.get() > 0) {
+                    completePolls();
+                }
+            }
+            failPolls(new IOException("Queue has been closed: " + filename));
+        }
+        
+        /** Adds elements with a single append and completes their futures. */
+        private void addAll(List<E> elements, List<CompletableFuture<Long>> futures) {
+            try {
+                long first = offerAll(elements, 0);
+                if (first >= 0) {
+                    for (int i = 0; i < futures.size(); i++) {
+                        futures.get(i).complete(first + i);
+                    }
+                    return;
+                }
+                // not enough space for all of them, add as many as fit
+                for (int i = 0; i < elements.size(); i++) {
+                    long sequence = offerAll(Collections.singletonList(elements.get(i)), 0);
+                    if (sequence >= 0) {
+                        futures.get(i).complete(sequence);
+                    } else {
+                        futures.get(i).completeExceptionally(
+                                new IllegalStateException("Queue full: " + filename));
+                    }
+                }
+            } catch (IOException e) {
+                for (int i = 0; i < futures.size(); i++) {
+                    futures.get(i).completeExceptionally(e);
+                }
+            } catch (InterruptedException e) {
+                for (int i = 0; i < futures.size(); i++) {
+                    futures.get(i).completeExceptionally(
+                            new InterruptedIOException("Interrupted while adding"));
+                }
+            }
+        }
+        
+        /** 
+         * Removes elements for as many waiting futures as there are elements, 
+         * and completes the futures with them. Each future is claimed before 
+         * its element is removed, so an element is only removed for a future 
+         * that can no longer be cancelled. Futures that get no element are 
+         * released and keep waiting.
+         */
+        private void completePolls() {
+            List<PollFuture> claimed = new ArrayList<PollFuture>();
+            synchronized (lock) {
+                int available = count.get();
+                while (!polls.isEmpty() && claimed.size() < available) {
+                    PollFuture future = polls.removeFirst();
+                    if (future.claim()) {
+                        claimed.add(future);
+                    }
+                    // otherwise it has been cancelled or completed by its caller
+                }
+            }
+            if (claimed.isEmpty()) {
+                return;
+            }
+            
+            List<E> removed;
+            try {
+                removed = remove(claimed.size());
+            } catch (IOException e) {
+                for (PollFuture future: claimed) {
+                    future.fail(e);
+                }
+                return;
+            }
+            for (int i = 0; i < removed.size(); i++) {
+                claimed.get(i).deliver(removed.get(i));
+            }
+            if (removed.size() < claimed.size()) {
+                // another consumer took the elements in the meantime
+                synchronized (lock) {
+                    for (int i = claimed.size() - 1; i >= removed.size(); i--) {
+                        claimed.get(i).release();
+                        polls.addFirst(claimed.get(i));
+                    }
+                }
+            }
+        }
+        
+        /** Fails all futures waiting for an element. */
+        private void failPolls(IOException e) {
+            List<PollFuture> failed;
+            synchronized (lock) {
+                failed = new ArrayList<PollFuture>(polls);
+                polls.clear();
+            }
+            for (PollFuture future: failed) {
+                if (future.claim()) {
+                    future.fail(e);
+                }
+            }
+        }
+    }
+    
+    /** 
+     * Future returned by {@link #pollAsync()}. The async worker claims it 
+     * before removing an element for it; a claimed future can no longer be 
+     * cancelled or completed by its caller, and a future that has been 
+     * cancelled or completed by its caller is not claimed.
+     */
+    private class PollFuture extends CompletableFuture<E> {
+        /** Has the future been claimed, by the worker or by its caller? */
+        private boolean claimed = false;
+        
+        /** Claims the future; returns false if it has already been claimed. */
+        synchronized boolean claim() {
+            if (claimed) {
+                return false;
+            }
+            claimed = true;
+            return true;
+        }
+        
+        /** Releases the future after the worker found no element for it. */
+        synchronized void release() {
+            claimed = false;
+        }
+        
+        /** Completes a future claimed by the worker with the removed element. */
+        void deliver(E element) {
+            super.complete(element);
+        }
+        
+        /** Completes a future claimed by the worker with the given error. */
+        void fail(Throwable error) {
+            super.completeExceptionally(error);
+        }
+        
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            return claim() && super.cancel(mayInterruptIfRunning);
+        }
+        
+        public boolean complete(E value) {
+            return claim() && super.complete(value);
+        }
+        
+        public boolean completeExceptionally(Throwable error) {
+            return claim() && super.completeExceptionally(error);
+        }
+    }
+    
+    /** Elements the group commit writer appends with a single write. */
+    private class Batch {
+        final List<E> elements = new ArrayList<E>();
+        
+        /** Encodings of the elements at the start of elements, in order. */
+        final List<PersistentQueueFile.Encoding> encodings = 
+            new ArrayList<PersistentQueueFile.Encoding>();
+        
+        /** Number of elements the encodings cover. */
+        int encoded;
+        
+        /** Space reserved for the records of the elements in pendingBytes. */
+        long bytes;
+        
+        /** Sequence number of the first element, set when the batch is appended. */
+        long firstSequence;
+        
+        /** Counted down once the batch has been written, or has failed. */
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile IOException failure;
+        
+        /** Marks the batch as written, or as failed if failure is not null. */
+        void finish(IOException failure) {
+            this.failure = failure;
+            done.countDown();
+        }
+        
+        /** Waits until the batch has been written and forced to disk. */
+        void await() throws IOException {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for group commit");
+            }
+            if (failure != null) {
+                throw new IOException("Group commit failed: " + filename, failure);
+            }
+        }
+    }
+    
+    /** A segment file of a segmented queue. */
+    private static class Segment {
+        /** The segment file. */
+        final File file;
+        /** Number of the segment, which is part of its filename. */
+        final long number;
+        /** Sequence number of the first element appended to the segment. */
+        final long firstSequence;
+        /** The opened segment file. */
+        final PersistentQueueFile queueFile;
         
-        // rename the defragmented file to the original file name
-        // this is the only critical operation where we can loose all data
-        // if we crash in the middle of it
-        originalFile.delete();
-        if (!defragmentedFile.renameTo(originalFile)) {
-            throw new IOException("Unable to rename " + defragmentedFileName + 
-                    " to " + filename);
+        Segment(File file, long number, long firstSequence, PersistentQueueFile queueFile) {
+            this.file = file;
+            this.number = number;
+            this.firstSequence = firstSequence;
+            this.queueFile = queueFile;
         }
     }
-}
\ No newline at end of file
+}
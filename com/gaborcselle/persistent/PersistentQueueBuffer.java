@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright (c) 2005 Gabor Cselle.
+ * 
+ * The author can be reached at:
+ * Gabor Cselle (mail at gaborcselle dot com)
+ * 
+ * Redistribution and use in source and binary forms with or without
+ * modification are permitted provided that source distributions retain this
+ * entire copyright notice and comment.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND WITHOUT ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *******************************************************************************/
+
+package com.gaborcselle.persistent;
+
+import java.util.AbstractList;
+import java.util.NoSuchElementException;
+
+/** 
+ * Helper class for {@link com.gaborcselle.persistent.PersistentQueue}.
+ * A list of the elements at the head of a queue, kept in a growable ring 
+ * buffer. Elements can be added at the end and removed at either end in
+ * constant time, without allocating a node per element.
+ * 
+ * @author Gabor Cselle
+ * @version 1.0
+ */
+class PersistentQueueBuffer<E> extends AbstractList<E> {
+    private Object[] elements = new Object[16];
+    
+    /** Index of the first element in the ring buffer. */
+    private int first = 0;
+    
+    private int size = 0;
+    
+    public int size() {
+        return size;
+    }
+    
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return (E)elements[(first + index) % elements.length];
+    }
+    
+    /** Adds an element to the end. */
+    public boolean add(E element) {
+        if (size == elements.length) {
+            Object[] grown = new Object[elements.length * 2];
+            for (int i = 0; i < size; i++) {
+                grown[i] = elements[(first + i) % elements.length];
+            }
+            elements = grown;
+            first = 0;
+        }
+        elements[(first + size) % elements.length] = element;
+        size++;
+        modCount++;
+        return true;
+    }
+    
+    /** Removes and returns the first element. */
+    E removeFirst() {
+        E element = peekFirst();
+        elements[first] = null;
+        first = (first + 1) % elements.length;
+        size--;
+        modCount++;
+        return element;
+    }
+    
+    /** Removes and returns the last element. */
+    E removeLast() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        E element = get(size - 1);
+        elements[(first + size - 1) % elements.length] = null;
+        size--;
+        modCount++;
+        return element;
+    }
+    
+    /** Returns the first element, or throws NoSuchElementException if there is none. */
+    E peekFirst() {
+        if (size == 0) {
+            throw new NoSuchElementException();
+        }
+        return get(0);
+    }
+    
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            elements[(first + i) % elements.length] = null;
+        }
+        first = 0;
+        size = 0;
+        modCount++;
+    }
+}
@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Copyright (c) 2005 Gabor Cselle.
+ * 
+ * The author can be reached at:
+ * Gabor Cselle (mail at gaborcselle dot com)
+ * 
+ * Redistribution and use in source and binary forms with or without
+ * modification are permitted provided that source distributions retain this
+ * entire copyright notice and comment.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND WITHOUT ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *******************************************************************************/
+
+package com.gaborcselle.persistent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/** 
+ * Helper class for {@link com.gaborcselle.persistent.PersistentQueue}.
+ * A checkpoint records where the live part of a queue starts: the queue file
+ * (or segment) and the byte offset of the record of the head element, the
+ * sequence number of that element and the classes described before it. When 
+ * a queue is created, it can start reading at that offset instead of reading
+ * all records from the start of the file.
+ * <P>
+ * Checkpoints are kept in a file next to the queue file, named like it plus 
+ * '.checkpoint'. It is written to a temporary file first, which then 
+ * atomically replaces the previous checkpoint. A checkpoint that is missing, 
+ * damaged or does not match the queue file is ignored.
+ * 
+ * @author Gabor Cselle
+ * @version 1.0
+ */
+class PersistentQueueCheckpoint {
+    /** Magic number at the start of every checkpoint file ("PQC1"). */
+    private final static int MAGIC = 0x50514331;
+    
+    /** Segment number the checkpoint refers to, or -1 for a single queue file. */
+    final long segmentNumber;
+    
+    /** Sequence numbers and id in the header of the queue file, which identify it. */
+    final long fileFirstSequence;
+    final long fileHeadSequence;
+    final long fileId;
+    
+    /** Offset of the record of the head element, or the file size if there is none. */
+    final long offset;
+    
+    /** Sequence number of the element at <code>offset</code>. */
+    final long sequence;
+    
+    /** Payloads of the class records in the queue file before <code>offset</code>. */
+    final List<byte[]> classRecords;
+    
+    PersistentQueueCheckpoint(long segmentNumber, long fileFirstSequence, 
+            long fileHeadSequence, long fileId, long offset, long sequence, 
+            List<byte[]> classRecords) {
+        this.segmentNumber = segmentNumber;
+        this.fileFirstSequence = fileFirstSequence;
+        this.fileHeadSequence = fileHeadSequence;
+        this.fileId = fileId;
+        this.offset = offset;
+        this.sequence = sequence;
+        this.classRecords = classRecords;
+    }
+    
+    /** 
+     * Returns true if this checkpoint refers to the given queue file, which 
+     * has the given segment number (-1 for a single queue file).
+     */
+    boolean matches(PersistentQueueFile queueFile, long number) {
+        return segmentNumber == number 
+            && fileFirstSequence == queueFile.getFirstSequence()
+            && fileHeadSequence == queueFile.getHeadSequence()
+            && fileId == queueFile.getId()
+            && offset >= PersistentQueueFile.HEADER_SIZE
+            && offset <= queueFile.length()
+            && sequence >= fileFirstSequence;
+    }
+    
+    /** 
+     * Writes this checkpoint to the given file, atomically replacing it.
+     * @param file the checkpoint file
+     * @param sync true if the checkpoint has to be forced to disk
+     * @throws IOException if an I/O error occurs
+     */
+    void write(File file, boolean sync) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        dos.writeInt(MAGIC);
+        dos.writeLong(segmentNumber);
+        dos.writeLong(fileFirstSequence);
+        dos.writeLong(fileHeadSequence);
+        dos.writeLong(fileId);
+        dos.writeLong(offset);
+        dos.writeLong(sequence);
+        dos.writeInt(classRecords.size());
+        for (byte[] classRecord: classRecords) {
+            dos.writeInt(classRecord.length);
+            dos.write(classRecord);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bos.toByteArray());
+        dos.writeLong(crc.getValue());
+        dos.flush();
+        
+        File tempFile = new File(file.getPath() + ".temp");
+        FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            fos.write(bos.toByteArray());
+            if (sync) {
+                fos.getFD().sync();
+            }
+        } finally {
+            fos.close();
+        }
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+    
+    /** 
+     * Reads the checkpoint from the given file.
+     * @return the checkpoint, or null if the file is missing or damaged
+     */
+    static PersistentQueueCheckpoint read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            byte[] data = new byte[(int)file.length()];
+            DataInputStream dis = new DataInputStream(new FileInputStream(file));
+            try {
+                dis.readFully(data);
+            } finally {
+                dis.close();
+            }
+            
+            CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length - 8);
+            dis = new DataInputStream(new ByteArrayInputStream(data));
+            if (dis.readInt() != MAGIC) {
+                return null;
+            }
+            long segmentNumber = dis.readLong();
+            long fileFirstSequence = dis.readLong();
+            long fileHeadSequence = dis.readLong();
+            long fileId = dis.readLong();
+            long offset = dis.readLong();
+            long sequence = dis.readLong();
+            int classCount = dis.readInt();
+            List<byte[]> classRecords = new ArrayList<byte[]>();
+            for (int i = 0; i < classCount; i++) {
+                byte[] classRecord = new byte[dis.readInt()];
+                dis.readFully(classRecord);
+                classRecords.add(classRecord);
+            }
+            if (dis.readLong() != crc.getValue()) {
+                return null;
+            }
+            return new PersistentQueueCheckpoint(segmentNumber, fileFirstSequence, 
+                    fileHeadSequence, fileId, offset, sequence, classRecords);
+        } catch (IOException e) {
+            // damaged checkpoint, read the queue file from the start instead
+            return null;
+        } catch (RuntimeException e) {
+            // e.g. a negative array size in a damaged checkpoint
+            return null;
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * Copyright (c) 2005 Gabor Cselle.
+ * 
+ * The author can be reached at:
+ * Gabor Cselle (mail at gaborcselle dot com)
+ * 
+ * Redistribution and use in source and binary forms with or without
+ * modification are permitted provided that source distributions retain this
+ * entire copyright notice and comment.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND WITHOUT ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *******************************************************************************/
+
+package com.gaborcselle.persistent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/** 
+ * Helper class for {@link com.gaborcselle.persistent.PersistentQueue}.
+ * Keeps the class descriptors that have been written to one queue file.
+ * <P>
+ * A plain <code>ObjectOutputStream</code> writes a stream header and the full
+ * descriptor of every class it encounters, which for small elements is larger
+ * than the element itself. Elements serialized by this class carry neither:
+ * a class descriptor is replaced by the index of the class in this table, and
+ * the descriptor itself, as serialization writes it, is written only once per
+ * file as a class record (see {@link #describe(int)}). Each serialized element
+ * still stands on its own, given the table of the file it was written to.
+ * <P>
+ * Elements are read with the descriptors from the file, so a class that has
+ * changed compatibly since its elements were written is handled just like by
+ * serialization. Elements that are added to a file are written with the local
+ * descriptor of their class, which is added to the table as another class if
+ * it differs from the one in the file.
+ * <P>
+ * A table is safe for use by multiple threads, so that elements can be read
+ * from a file while others are being appended to it.
+ * 
+ * @author Gabor Cselle
+ * @version 1.0
+ */
+class PersistentQueueClassTable {
+    /** Payloads of the class records of the classes in this table, by index. */
+    private final List<byte[]> records = new ArrayList<byte[]>();
+    
+    /** 
+     * Descriptors of the classes in this table, by index: as read from the 
+     * class record, or the local descriptor if the class was added by 
+     * serializing an element.
+     */
+    private final List<ObjectStreamClass> descriptors = new ArrayList<ObjectStreamClass>();
+    
+    /** Index of the local descriptor of each class in this table, by class name. */
+    private final Map<String, Integer> indices = new HashMap<String, Integer>();
+    
+    /** Returns the number of classes in this table. */
+    synchronized int size() {
+        return records.size();
+    }
+    
+    /** 
+     * Forgets all classes with an index of <code>size</code> or higher, e.g.
+     * because the records describing them could not be written. 
+     */
+    synchronized void truncate(int size) {
+        while (records.size() > size) {
+            records.remove(records.size() - 1);
+            descriptors.remove(descriptors.size() - 1);
+        }
+        for (Iterator<Integer> i = indices.values().iterator(); i.hasNext(); ) {
+            if (i.next().intValue() >= size) {
+                i.remove();
+            }
+        }
+    }
+    
+    /** 
+     * Returns a table holding the same classes as this one, which can be 
+     * extended without changing this one.
+     */
+    synchronized PersistentQueueClassTable copy() {
+        PersistentQueueClassTable copy = new PersistentQueueClassTable();
+        copy.records.addAll(records);
+        copy.descriptors.addAll(descriptors);
+        copy.indices.putAll(indices);
+        return copy;
+    }
+    
+    /** Returns the payload of the class record for the class with given index. */
+    synchronized byte[] describe(int index) {
+        return records.get(index);
+    }
+    
+    /** Adds the class described by the payload of a class record to this table. */
+    synchronized void read(byte[] record) throws IOException {
+        DescriptorInputStream dis = new DescriptorInputStream(new ByteArrayInputStream(record));
+        try {
+            descriptors.add(dis.readDescriptor());
+        } catch (ClassNotFoundException e) {
+            // convert to a IOException 
+            throw new IOException(e.toString()); 
+        }
+        records.add(record);
+    }
+    
+    /** 
+     * Serializes an element. Classes that are not yet in this table are added
+     * to it; the caller has to write their class records before the element.
+     */
+    synchronized byte[] serialize(Serializable entry) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new TableObjectOutputStream(bos);
+        oos.writeObject(entry);
+        oos.flush();
+        return bos.toByteArray();
+    }
+    
+    /** Deserializes an element that was serialized with the classes in this table. */
+    synchronized Serializable deserialize(byte[] data, int offset, int length) throws IOException {
+        ObjectInputStream ois = new TableObjectInputStream(
+                new ByteArrayInputStream(data, offset, length));
+        try {
+            return (Serializable)ois.readObject();
+        } catch (ClassNotFoundException e) {
+            // convert to a IOException 
+            throw new IOException(e.toString()); 
+        } catch (ClassCastException e) {
+            // convert to a IOException 
+            throw new IOException(e.toString()); 
+        }
+    }
+    
+    /** 
+     * Returns the index of the given local descriptor, adding it to this table
+     * unless a class record read from the file describes it the same way.
+     */
+    private int indexOf(ObjectStreamClass descriptor) throws IOException {
+        Integer index = indices.get(descriptor.getName());
+        if (index == null) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DescriptorOutputStream dos = new DescriptorOutputStream(bos);
+            dos.writeDescriptor(descriptor);
+            dos.flush();
+            byte[] record = bos.toByteArray();
+            
+            for (int i = 0; i < records.size() && index == null; i++) {
+                if (Arrays.equals(records.get(i), record)) {
+                    index = Integer.valueOf(i);
+                }
+            }
+            if (index == null) {
+                index = Integer.valueOf(records.size());
+                records.add(record);
+                descriptors.add(descriptor);
+            }
+            indices.put(descriptor.getName(), index);
+        }
+        return index.intValue();
+    }
+    
+    /** Returns the descriptor of the class with given index. */
+    private ObjectStreamClass lookup(int index) throws IOException {
+        if (index < 0 || index >= descriptors.size()) {
+            throw new StreamCorruptedException("Unknown class index: " + index);
+        }
+        return descriptors.get(index);
+    }
+    
+    /** Writes class indices instead of stream headers and class descriptors. */
+    private class TableObjectOutputStream extends ObjectOutputStream {
+        TableObjectOutputStream(OutputStream out) throws IOException {
+            super(out);
+        }
+        
+        protected void writeStreamHeader() {
+            // the file header identifies the format, no need for a stream header
+        }
+        
+        protected void writeClassDescriptor(ObjectStreamClass descriptor) throws IOException {
+            writeInt(indexOf(descriptor));
+        }
+    }
+    
+    /** Reads elements written by {@link TableObjectOutputStream}. */
+    private class TableObjectInputStream extends ObjectInputStream {
+        TableObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+        
+        protected void readStreamHeader() {
+            // there is no stream header, see TableObjectOutputStream
+        }
+        
+        protected ObjectStreamClass readClassDescriptor() throws IOException {
+            return lookup(readInt());
+        }
+    }
+    
+    /** Writes the payload of a class record: a class descriptor as serialization writes it. */
+    private static class DescriptorOutputStream extends ObjectOutputStream {
+        DescriptorOutputStream(OutputStream out) throws IOException {
+            super(out);
+        }
+        
+        protected void writeStreamHeader() {
+            // a class record stands on its own, see TableObjectOutputStream
+        }
+        
+        void writeDescriptor(ObjectStreamClass descriptor) throws IOException {
+            writeClassDescriptor(descriptor);
+        }
+    }
+    
+    /** Reads the payload of a class record written by {@link DescriptorOutputStream}. */
+    private static class DescriptorInputStream extends ObjectInputStream {
+        DescriptorInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+        
+        protected void readStreamHeader() {
+            // there is no stream header, see DescriptorOutputStream
+        }
+        
+        ObjectStreamClass readDescriptor() throws IOException, ClassNotFoundException {
+            return readClassDescriptor();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright (c) 2005 Gabor Cselle.
+ * 
+ * The author can be reached at:
+ * Gabor Cselle (mail at gaborcselle dot com)
+ * 
+ * Redistribution and use in source and binary forms with or without
+ * modification are permitted provided that source distributions retain this
+ * entire copyright notice and comment.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND WITHOUT ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *******************************************************************************/
+
+package com.gaborcselle.persistent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/** 
+ * Codec of a {@link com.gaborcselle.persistent.PersistentQueue}. Turns the 
+ * elements of the queue into the bytes of their records in the queue file,
+ * and those bytes back into elements.
+ * <ul>
+ * <li>{@link #serialization()}: Java serialization, for elements that 
+ * implement <code>java.io.Serializable</code>. Within a queue file, the
+ * descriptor of each class is only written once. This is the default.</li>
+ * <li>{@link #BYTES}: byte arrays, stored as they are.</li>
+ * <li>{@link #STRING}: strings, stored in UTF-8.</li>
+ * </ul>
+ * Other codecs can be written by extending this class; they have to be safe 
+ * for use by multiple threads. A queue file holds no information about the 
+ * codec, so a queue has to be created with the codec its file was written 
+ * with. Files written by earlier versions hold serialized elements.
+ * 
+ * @author Gabor Cselle
+ * @version 1.0
+ */
+public abstract class PersistentQueueCodec<E> {
+    /** Stores byte arrays as they are. */
+    public final static PersistentQueueCodec<byte[]> BYTES = new PersistentQueueCodec<byte[]>() {
+        public byte[] encode(byte[] element) {
+            return element;
+        }
+        
+        public byte[] decode(byte[] data, int offset, int length) {
+            byte[] element = new byte[length];
+            System.arraycopy(data, offset, element, 0, length);
+            return element;
+        }
+        
+        public String toString() {
+            return "BYTES";
+        }
+    };
+    
+    /** Stores strings in UTF-8. */
+    public final static PersistentQueueCodec<String> STRING = new PersistentQueueCodec<String>() {
+        private final Charset utf8 = Charset.forName("UTF-8");
+        
+        public byte[] encode(String element) {
+            return element.getBytes(utf8);
+        }
+        
+        public String decode(byte[] data, int offset, int length) {
+            return new String(data, offset, length, utf8);
+        }
+        
+        public String toString() {
+            return "STRING";
+        }
+    };
+    
+    /** Java serialization, with class descriptors shared per file. */
+    private final static PersistentQueueCodec<Serializable> SERIALIZATION = 
+        new PersistentQueueCodec<Serializable>() {
+        public byte[] encode(Serializable element) throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bos);
+            oos.writeObject(element);
+            oos.flush();
+            return bos.toByteArray();
+        }
+        
+        public Serializable decode(byte[] data, int offset, int length) throws IOException {
+            ObjectInputStream ois = new ObjectInputStream(
+                    new ByteArrayInputStream(data, offset, length));
+            try {
+                return (Serializable)ois.readObject();
+            } catch (ClassNotFoundException e) {
+                // convert to a IOException 
+                throw new IOException(e.toString()); 
+            } catch (ClassCastException e) {
+                // convert to a IOException 
+                throw new IOException(e.toString()); 
+            }
+        }
+        
+        byte[] encode(Serializable element, PersistentQueueClassTable classTable) 
+                throws IOException {
+            return classTable.serialize(element);
+        }
+        
+        Serializable decode(byte[] data, int offset, int length, 
+                PersistentQueueClassTable classTable) throws IOException {
+            return classTable.deserialize(data, offset, length);
+        }
+        
+        public String toString() {
+            return "SERIALIZATION";
+        }
+    };
+    
+    /**
+     * Returns the codec that stores elements by Java serialization. Elements
+     * encoded by it on their own are complete serialized objects; in a queue 
+     * file, class descriptors are replaced by references to class records.
+     * @return the codec
+     */
+    @SuppressWarnings("unchecked")
+    public static <E extends Serializable> PersistentQueueCodec<E> serialization() {
+        return (PersistentQueueCodec<E>)SERIALIZATION;
+    }
+    
+    /**
+     * Returns the bytes of an element.
+     * @param element the element to encode
+     * @return the bytes of the element
+     * @throws IOException if the element cannot be encoded
+     */
+    public abstract byte[] encode(E element) throws IOException;
+    
+    /**
+     * Returns the element stored in the given bytes.
+     * @param data the array holding the bytes of the element
+     * @param offset offset of the bytes of the element in <code>data</code>
+     * @param length number of bytes of the element
+     * @return the element
+     * @throws IOException if the bytes do not hold an element
+     */
+    public abstract E decode(byte[] data, int offset, int length) throws IOException;
+    
+    /** 
+     * Returns the bytes of an element written to a queue file with the given
+     * class table. Classes added to the table have to be described by class
+     * records before the element.
+     */
+    byte[] encode(E element, PersistentQueueClassTable classTable) throws IOException {
+        return encode(element);
+    }
+    
+    /** Returns the element stored in the given bytes of a queue file with the given class table. */
+    E decode(byte[] data, int offset, int length, PersistentQueueClassTable classTable) 
+            throws IOException {
+        return decode(data, offset, length);
+    }
+    
+    /** 
+     * Returns the element stored in the remaining bytes of the given buffer, 
+     * which is either backed by an array or a slice of a memory-mapped queue
+     * file with the given class table.
+     */
+    E decode(ByteBuffer data, PersistentQueueClassTable classTable) throws IOException {
+        if (data.hasArray()) {
+            return decode(data.array(), data.arrayOffset() + data.position(), data.remaining(), 
+                    classTable);
+        }
+        byte[] bytes = new byte[data.remaining()];
+        data.duplicate().get(bytes);
+        return decode(bytes, 0, bytes.length, classTable);
+    }
+}
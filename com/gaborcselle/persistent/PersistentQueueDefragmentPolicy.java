@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * Copyright (c) 2005 Gabor Cselle.
+ * 
+ * The author can be reached at:
+ * Gabor Cselle (mail at gaborcselle dot com)
+ * 
+ * Redistribution and use in source and binary forms with or without
+ * modification are permitted provided that source distributions retain this
+ * entire copyright notice and comment.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND WITHOUT ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *******************************************************************************/
+
+package com.gaborcselle.persistent;
+
+/** 
+ * Defragmentation policy of a {@link com.gaborcselle.persistent.PersistentQueue}
+ * that is kept in a single file. Determines when the file is rewritten with
+ * only the elements that are still in the queue.
+ * <ul>
+ * <li>{@link #removes(int)}: the file is defragmented after a fixed number of
+ * removed elements, however large the queue and its file are.</li>
+ * <li>{@link #garbage(double, long, long, long)}: the file is defragmented 
+ * when the bytes taken up by removed elements and head records, its garbage,
+ * grow too large compared to the bytes of the elements still in the queue, or
+ * too large in absolute terms. Small files and defragmentations in quick
+ * succession are avoided.</li>
+ * <li>{@link #ADAPTIVE}: a garbage policy with thresholds that suit most 
+ * queues. This is the default.</li>
+ * </ul>
+ * The current ratio of garbage to live bytes is available from 
+ * {@link PersistentQueue#getGarbageRatio()}.
+ * 
+ * @author Gabor Cselle
+ * @version 1.0
+ */
+public final class PersistentQueueDefragmentPolicy {
+    /** The kinds of defragmentation policies. */
+    enum Kind { REMOVES, GARBAGE }
+    
+    /** 
+     * Defragment when the garbage exceeds the live bytes, or 64 MB, but not 
+     * before the file has grown to 1 MB, and at most once a second.
+     */
+    public final static PersistentQueueDefragmentPolicy ADAPTIVE = 
+        garbage(1.0, 64L << 20, 1L << 20, 1000);
+    
+    private final Kind kind;
+    private final int removes;
+    private final double maxGarbageRatio;
+    private final long maxGarbageBytes;
+    private final long minFileSize;
+    private final long minIntervalMillis;
+    
+    private PersistentQueueDefragmentPolicy(Kind kind, int removes, double maxGarbageRatio, 
+            long maxGarbageBytes, long minFileSize, long minIntervalMillis) {
+        this.kind = kind;
+        this.removes = removes;
+        this.maxGarbageRatio = maxGarbageRatio;
+        this.maxGarbageBytes = maxGarbageBytes;
+        this.minFileSize = minFileSize;
+        this.minIntervalMillis = minIntervalMillis;
+    }
+    
+    /**
+     * Returns a policy that defragments the file after every 
+     * <code>removes</code> removed elements.
+     * @param removes number of removed elements between defragmentations
+     * @return the policy
+     */
+    public static PersistentQueueDefragmentPolicy removes(int removes) {
+        return new PersistentQueueDefragmentPolicy(Kind.REMOVES, removes, 0, 0, 0, 0);
+    }
+    
+    /**
+     * Returns a policy that defragments the file when its garbage exceeds 
+     * <code>maxGarbageRatio</code> times the bytes of the elements still in
+     * the queue, or when it exceeds <code>maxGarbageBytes</code>. The file is 
+     * not defragmented while it is smaller than <code>minFileSize</code>, or
+     * within <code>minIntervalMillis</code> of the previous defragmentation.
+     * @param maxGarbageRatio maximum ratio of garbage to live bytes
+     * @param maxGarbageBytes maximum garbage in bytes, or 0 for no limit
+     * @param minFileSize minimum size of the file in bytes
+     * @param minIntervalMillis minimum time between defragmentations in milliseconds
+     * @return the policy
+     */
+    public static PersistentQueueDefragmentPolicy garbage(double maxGarbageRatio, 
+            long maxGarbageBytes, long minFileSize, long minIntervalMillis) {
+        if (!(maxGarbageRatio >= 0)) {
+            throw new IllegalArgumentException("Garbage ratio must not be negative: " 
+                    + maxGarbageRatio);
+        }
+        return new PersistentQueueDefragmentPolicy(Kind.GARBAGE, 0, maxGarbageRatio, 
+                maxGarbageBytes, minFileSize, minIntervalMillis);
+    }
+    
+    /** Returns the kind of this policy. */
+    Kind getKind() {
+        return kind;
+    }
+    
+    /** 
+     * Returns true if the file should be defragmented.
+     * @param removes number of elements removed since the last defragmentation
+     * @param millis time since the last defragmentation in milliseconds
+     * @param fileSize size of the file in bytes
+     * @param garbageBytes size of the garbage in the file in bytes
+     * @param liveBytes size of the records of the elements in the queue in bytes
+     */
+    boolean isDue(long removes, long millis, long fileSize, long garbageBytes, long liveBytes) {
+        if (kind == Kind.REMOVES) {
+            return removes >= this.removes;
+        }
+        if (fileSize < minFileSize || millis < minIntervalMillis) {
+            return false;
+        }
+        return garbageBytes > 0 && (garbageBytes > maxGarbageRatio * liveBytes 
+                || (maxGarbageBytes > 0 && garbageBytes >= maxGarbageBytes));
+    }
+    
+    public String toString() {
+        if (kind == Kind.REMOVES) {
+            return "REMOVES(" + removes + ")";
+        }
+        return "GARBAGE(ratio=" + maxGarbageRatio + ", bytes=" + maxGarbageBytes 
+            + ", minFileSize=" + minFileSize + ", minIntervalMillis=" + minIntervalMillis + ")";
+    }
+}
@@ -19,7 +19,9 @@ import java.io.Serializable;
 
 /** 
  * Helper class for {@link com.gaborcselle.persistent.PersistentQueue}.
- * Instances represent that the first element of a list has been deleted.
+ * Instances represent that the first element of a list has been deleted. 
+ * Only found in files written by earlier versions, current files use head
+ * records instead (see {@link PersistentQueueFile}).
  * 
  * @author Gabor Cselle
  * @version 1.0
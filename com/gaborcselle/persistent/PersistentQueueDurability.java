@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright (c) 2005 Gabor Cselle.
+ * 
+ * The author can be reached at:
+ * Gabor Cselle (mail at gaborcselle dot com)
+ * 
+ * Redistribution and use in source and binary forms with or without
+ * modification are permitted provided that source distributions retain this
+ * entire copyright notice and comment.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND WITHOUT ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *******************************************************************************/
+
+package com.gaborcselle.persistent;
+
+/** 
+ * Durability policy of a {@link com.gaborcselle.persistent.PersistentQueue}.
+ * Determines when the records written by <code>add()</code> and 
+ * <code>remove()</code> are forced from the operating system's buffers to disk, 
+ * and therefore which acknowledged changes can be lost in a system crash.
+ * <ul>
+ * <li>{@link #ALWAYS}: every change is forced to disk before the method that
+ * made it returns.</li>
+ * <li>{@link #GROUP_COMMIT}: like <code>ALWAYS</code>, but threads that change 
+ * the queue concurrently wait for a single shared force.</li>
+ * <li>{@link #interval(long)}: changes are forced to disk by a background thread
+ * at a fixed interval. Changes made within the last interval can be lost.</li>
+ * <li>{@link #NONE}: changes are left to the operating system, which writes
+ * them to disk eventually. This is the default.</li>
+ * </ul>
+ * Program crashes never lose acknowledged changes, whatever the policy.
+ * 
+ * @author Gabor Cselle
+ * @version 1.0
+ */
+public final class PersistentQueueDurability {
+    /** The kinds of durability policies. */
+    enum Kind { ALWAYS, GROUP_COMMIT, INTERVAL, NONE }
+    
+    /** Force every change to disk before returning. */
+    public final static PersistentQueueDurability ALWAYS = 
+        new PersistentQueueDurability(Kind.ALWAYS, 0);
+    
+    /** Force every change to disk before returning, sharing forces between threads. */
+    public final static PersistentQueueDurability GROUP_COMMIT = 
+        new PersistentQueueDurability(Kind.GROUP_COMMIT, 0);
+    
+    /** Never force changes to disk explicitly. */
+    public final static PersistentQueueDurability NONE = 
+        new PersistentQueueDurability(Kind.NONE, 0);
+    
+    private final Kind kind;
+    private final long intervalMillis;
+    
+    private PersistentQueueDurability(Kind kind, long intervalMillis) {
+        this.kind = kind;
+        this.intervalMillis = intervalMillis;
+    }
+    
+    /**
+     * Returns a policy that forces changes to disk from a background thread
+     * every <code>intervalMillis</code> milliseconds.
+     * @param intervalMillis the interval between forces in milliseconds
+     * @return the policy
+     */
+    public static PersistentQueueDurability interval(long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Interval must be positive: " + intervalMillis);
+        }
+        return new PersistentQueueDurability(Kind.INTERVAL, intervalMillis);
+    }
+    
+    /** Returns the kind of this policy. */
+    Kind getKind() {
+        return kind;
+    }
+    
+    /** Returns the interval between forces of an INTERVAL policy, in milliseconds. */
+    long getIntervalMillis() {
+        return intervalMillis;
+    }
+    
+    public String toString() {
+        return kind == Kind.INTERVAL ? "INTERVAL(" + intervalMillis + "ms)" : kind.toString();
+    }
+}
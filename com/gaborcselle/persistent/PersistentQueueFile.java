@@ -0,0 +1,1325 @@
+/*******************************************************************************
+ * Copyright (c) 2005 Gabor Cselle.
+ * 
+ * The author can be reached at:
+ * Gabor Cselle (mail at gaborcselle dot com)
+ * 
+ * Redistribution and use in source and binary forms with or without
+ * modification are permitted provided that source distributions retain this
+ * entire copyright notice and comment.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND WITHOUT ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *******************************************************************************/
+
+package com.gaborcselle.persistent;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/** 
+ * Helper class for {@link com.gaborcselle.persistent.PersistentQueue}.
+ * A queue file in the binary record format. 
+ * <P>
+ * The file starts with a header holding a magic number, the format version, 
+ * the sequence number of the first element appended to the file, the 
+ * sequence number of the queue head at the time the file was started and a
+ * random id, which tells the file apart from earlier files of the same name.
+ * The header is followed by length-prefixed records:
+ * <pre>
+ *   type (1 byte) | payload length (4 bytes) | checksum (4 bytes) | payload
+ * </pre>
+ * The checksum is the CRC32C of the type, length and payload of the record.
+ * An entry record holds one element, encoded by the codec of the file (see
+ * {@link PersistentQueueCodec}), a head record holds the sequence number of
+ * the head of the queue after elements have been removed, and a class record
+ * describes a class used by the serialized elements of the entry records 
+ * after it (see {@link PersistentQueueClassTable}). A single head record 
+ * covers any number of removed elements, and only the last one in a file
+ * matters.
+ * <P>
+ * Records are appended through a channel that is opened with the first write
+ * and then kept open until {@link #close()} is called, so appending does not
+ * cost an open and close of the file each time. Each append is a single write
+ * at the end of the file, so head records and entry records can be appended
+ * by different threads. Appended records are forced to disk by 
+ * {@link #sync(long)}; threads that call it concurrently share a single force.
+ * <P>
+ * A memory-mapped file instead maps the file in regions of 
+ * {@link #MAP_REGION_SIZE} bytes, which are mapped ahead of the records 
+ * appended to them: records are copied into the mapped memory and read from
+ * it, without a system call per record. Mapping a region extends the file, so
+ * a mapped file ends with zero bytes until it is closed and truncated to its
+ * records. A zero byte where a record type is expected therefore marks the 
+ * end of the records in any file. A file that nothing is appended to anymore,
+ * like a segment that is no longer the newest one, is sealed (see 
+ * {@link #seal()}) and read through a stream instead, so that it keeps its
+ * size.
+ * <P>
+ * An opened file is read in two passes: {@link #scan()} reads the class and
+ * head records and counts the entry records without deserializing anything,
+ * after which {@link #reader(long)} deserializes only the entries that have
+ * not been removed. If a checkpoint of the file is available (see 
+ * {@link PersistentQueueCheckpoint}), {@link #restore(PersistentQueueCheckpoint)}
+ * lets both passes start at the offset it records instead of the file header.
+ * Elements that are not kept in memory are read again later by the offset of
+ * their entry record, see {@link #readEntries(long, int)}. Defragmentation 
+ * copies the records of the elements still in the queue to a new file as they
+ * are, see {@link #transferRecords}.
+ * <P>
+ * A process that dies while appending records can leave the last records 
+ * incomplete. When a file is opened, {@link #scan()} verifies all records
+ * against their checksums and stops at the first incomplete record or 
+ * garbled record header, which is cut off with everything after it. Records
+ * read later are verified again, a record that does not match its checksum
+ * then causes an error.
+ * <P>
+ * Files written by the original version are plain sequences of serialized 
+ * objects. They can be told apart by their first bytes, see {@link #isFormatted(File)}.
+ * 
+ * @author Gabor Cselle
+ * @version 1.0
+ */
+class PersistentQueueFile {
+    /** Magic number at the start of every file in this format ("PQF1"). */
+    final static int MAGIC = 0x50514631;
+    
+    /** Version of the format written by this class. */
+    final static int VERSION = 2;
+    
+    /** Size of the file header in bytes. */
+    final static int HEADER_SIZE = 4 + 4 + 8 + 8 + 8;
+    
+    /** Size of the type, length and checksum of a record in bytes. */
+    final static int RECORD_HEADER_SIZE = 1 + 4 + 4;
+    
+    /** Size of the regions a memory-mapped file is mapped in, in bytes. */
+    final static int MAP_REGION_SIZE = 1 << 20;
+    
+    /** Record type of an element. */
+    final static int ENTRY_RECORD = 1;
+    
+    /** Record type of a class descriptor. */
+    final static int CLASS_RECORD = 3;
+    
+    /** Record type of the sequence number of the head element after removals. */
+    final static int HEAD_RECORD = 4;
+    
+    /** Source of the ids of created files. */
+    private final static Random ids = new Random();
+    
+    private File file;
+    private final long firstSequence;
+    private final long headSequence;
+    private final long id;
+    
+    /** Statistics that forces of this file are recorded in. */
+    private final PersistentQueueStatistics statistics;
+    
+    /** Channel for appending records, or null if it is not open. */
+    private FileChannel channel;
+    
+    /** Size of the file in bytes, including all records appended so far. */
+    private volatile long length;
+    
+    /** 
+     * Guards the position of appended records, i.e. length while appending.
+     * A ReentrantLock rather than a monitor, so that a virtual thread blocked
+     * on a write does not pin its carrier thread.
+     */
+    private final ReentrantLock appendLock = new ReentrantLock();
+    
+    /** Is the file accessed through memory mappings? */
+    private final boolean mapped;
+    
+    /** Codec of the elements of the entry records. */
+    private final PersistentQueueCodec<Object> codec;
+    
+    /** 
+     * Mappings of the consecutive regions of a memory-mapped file, covering at
+     * least all records appended so far, or none if the file is not mapped. 
+     * Replaced as a whole when a region is mapped, so that readers need no 
+     * lock; the position of a mapping is never changed, only its duplicates'.
+     */
+    private volatile MappedByteBuffer[] regions = new MappedByteBuffer[0];
+    
+    /** Will nothing be appended to this file anymore, see {@link #seal()}? */
+    private volatile boolean sealed = false;
+    
+    /** Has a memory-mapped file been extended since it was last forced to disk? */
+    private volatile boolean extended = false;
+    
+    /** Guards channel, syncing and syncedLength. */
+    private final ReentrantLock syncLock = new ReentrantLock();
+    
+    /** Signalled when a thread has finished forcing the file to disk. */
+    private final Condition syncDone = syncLock.newCondition();
+    
+    /** Is a thread currently forcing the file to disk? */
+    private boolean syncing = false;
+    
+    /** Size of the file that is known to be on disk. */
+    private long syncedLength;
+    
+    /** Number of entry records in this file. */
+    private long entryCount = 0;
+    
+    /** Sequence number of the head element after the head records in this file. */
+    private long headFloor = Long.MIN_VALUE;
+    
+    /** Classes that have been described by class records in this file so far. */
+    private final PersistentQueueClassTable classTable = new PersistentQueueClassTable();
+    
+    /** 
+     * Offsets of the class records of the classes in the class table. Guarded
+     * by its own monitor, so that it can be read while records are appended.
+     */
+    private final List<Long> classOffsets = new ArrayList<Long>();
+    
+    /** Offset that reading starts at: after the header, or at a restored checkpoint. */
+    private long startOffset = HEADER_SIZE;
+    
+    /** Number of entry records before startOffset. */
+    private long entriesBefore = 0;
+    
+    /** Number of class records before startOffset. */
+    private int restoredClasses = 0;
+    
+    private PersistentQueueFile(File file, long firstSequence, long headSequence, 
+            long id, long length, PersistentQueueStatistics statistics, boolean mapped, 
+            PersistentQueueCodec<?> codec) {
+        this.file = file;
+        this.firstSequence = firstSequence;
+        this.headSequence = headSequence;
+        this.id = id;
+        this.length = length;
+        this.syncedLength = length;
+        this.statistics = statistics;
+        this.mapped = mapped;
+        this.codec = cast(codec);
+    }
+    
+    /** 
+     * Returns the given codec as a codec of any element. The elements passed
+     * to the file are always of the type of the codec of its queue.
+     */
+    @SuppressWarnings("unchecked")
+    private static PersistentQueueCodec<Object> cast(PersistentQueueCodec<?> codec) {
+        return (PersistentQueueCodec<Object>)codec;
+    }
+    
+    /** 
+     * Creates a file that only holds a header, replacing any existing file.
+     * @param file the file to create
+     * @param firstSequence sequence number of the first element that will be appended
+     * @param headSequence sequence number of the queue head
+     * @param statistics statistics to record forces of the file in
+     * @param mapped whether to access the file through memory mappings
+     * @param codec codec of the elements
+     * @return the created file
+     * @throws IOException if an I/O error occurs
+     */
+    static PersistentQueueFile create(File file, long firstSequence, long headSequence, 
+            PersistentQueueStatistics statistics, boolean mapped, PersistentQueueCodec<?> codec) 
+            throws IOException {
+        PersistentQueueFile queueFile = new PersistentQueueFile(file, firstSequence, 
+                headSequence, ids.nextLong(), 0, statistics, mapped, codec);
+        queueFile.openChannel().truncate(0);
+        
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(firstSequence);
+        header.putLong(headSequence);
+        header.putLong(queueFile.id);
+        header.flip();
+        queueFile.write(header);
+        
+        return queueFile;
+    }
+    
+    /** 
+     * Opens an existing file and reads its header.
+     * @param file the file to open
+     * @param statistics statistics to record forces of the file in
+     * @param mapped whether to access the file through memory mappings
+     * @param codec codec of the elements
+     * @return the opened file
+     * @throws IOException if an I/O error occurs or the file is not in this format
+     */
+    static PersistentQueueFile open(File file, PersistentQueueStatistics statistics, 
+            boolean mapped, PersistentQueueCodec<?> codec) throws IOException {
+        DataInputStream dis = new DataInputStream(new FileInputStream(file));
+        try {
+            if (dis.readInt() != MAGIC) {
+                throw new IOException("Not a queue file: " + file);
+            }
+            int version = dis.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version " + version + " of queue file " + file);
+            }
+            return new PersistentQueueFile(file, dis.readLong(), dis.readLong(), 
+                    dis.readLong(), file.length(), statistics, mapped, codec);
+        } finally {
+            dis.close();
+        }
+    }
+    
+    /** 
+     * Returns true if the given file is in this format, false if it has been
+     * written by an earlier version or is empty.
+     */
+    static boolean isFormatted(File file) throws IOException {
+        if (file.length() < HEADER_SIZE) {
+            return false;
+        }
+        DataInputStream dis = new DataInputStream(new FileInputStream(file));
+        try {
+            return dis.readInt() == MAGIC;
+        } finally {
+            dis.close();
+        }
+    }
+    
+    /** Returns the file. */
+    File getFile() {
+        return file;
+    }
+    
+    /** Returns the size of the file in bytes. */
+    long length() {
+        return length;
+    }
+    
+    /** 
+     * Returns the size of the header and the class records of this file in 
+     * bytes, which are needed however many elements have been removed.
+     */
+    long overheadSize() {
+        long size = HEADER_SIZE;
+        synchronized (classOffsets) {
+            for (int i = 0; i < classOffsets.size(); i++) {
+                size += RECORD_HEADER_SIZE + classTable.describe(i).length;
+            }
+        }
+        return size;
+    }
+    
+    /** Returns the sequence number of the first element appended to this file. */
+    long getFirstSequence() {
+        return firstSequence;
+    }
+    
+    /** Returns the sequence number of the queue head when this file was started. */
+    long getHeadSequence() {
+        return headSequence;
+    }
+    
+    /** Returns the random id of this file, which is set when it is created. */
+    long getId() {
+        return id;
+    }
+    
+    /** Returns the number of entry records in this file. */
+    long getEntryCount() {
+        return entryCount;
+    }
+    
+    /** 
+     * Returns the sequence number of the head element after all head records 
+     * in this file, given the sequence number of the head element before it.
+     */
+    long applyHeadRecords(long headSequence) {
+        return Math.max(headSequence, headFloor);
+    }
+    
+    /** 
+     * Renames the file to the given target, see {@link #move(File, File)}. The
+     * channel is closed first, it will be opened again with the next write.
+     */
+    void renameTo(File target) throws IOException {
+        close();
+        move(file, target);
+        file = target;
+    }
+    
+    /** 
+     * Renames a file, replacing the target if it exists. The rename is atomic
+     * where the file system supports it, so that a crash leaves either the 
+     * target or the file in its place, and is forced to disk by forcing the
+     * directory of the target.
+     */
+    static void move(File file, File target) throws IOException {
+        try {
+            Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(file.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        syncDirectory(target);
+    }
+    
+    /** 
+     * Forces the directory holding the given file to disk, so that renames 
+     * and deletions in it survive a system crash. Has no effect on platforms
+     * that cannot open directories, e.g. Windows.
+     */
+    static void syncDirectory(File file) throws IOException {
+        FileChannel directory;
+        try {
+            directory = FileChannel.open(file.getAbsoluteFile().getParentFile().toPath(), 
+                    StandardOpenOption.READ);
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            directory.force(true);
+        } finally {
+            directory.close();
+        }
+    }
+    
+    /** 
+     * Appends an entry record for the given element.
+     * @return the offset of the entry record
+     */
+    long appendEntry(Object entry) throws IOException {
+        return appendEntries(Collections.singletonList(entry)).getOffset(0);
+    }
+    
+    /** 
+     * Appends entry records for the given elements with a single write.
+     * @return the positions of the entry records, in the order of the elements
+     */
+    PersistentQueueIndex appendEntries(Collection<?> entries) throws IOException {
+        return appendEntries(entries, Collections.<Encoding>emptyList());
+    }
+    
+    /** 
+     * Appends entry records for the given elements with a single write. The
+     * elements at the start of the list have been encoded by the given 
+     * encodings, in order; their payloads are appended as they are, unless 
+     * they have been encoded for another file or refer to classes that this
+     * file did not describe yet when they were encoded.
+     * @return the positions of the entry records, in the order of the elements
+     */
+    PersistentQueueIndex appendEntries(Collection<?> entries, List<Encoding> encodings) 
+            throws IOException {
+        List<byte[]> encoded = new ArrayList<byte[]>();
+        for (Encoding encoding: encodings) {
+            for (int i = 0; i < encoding.payloads.size(); i++) {
+                encoded.add(encoding.file == this && i < encoding.reusable 
+                        ? encoding.payloads.get(i) : null);
+            }
+        }
+        int knownClasses = classTable.size();
+        
+        // positions relative to the start of the write, which is only known once written
+        PersistentQueueIndex relative = new PersistentQueueIndex();
+        List<Long> classPositions = new ArrayList<Long>();
+        long start;
+        try {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(bos);
+            int position = 0;
+            for (Object entry: entries) {
+                int classes = classTable.size();
+                byte[] payload = position < encoded.size() ? encoded.get(position) : null;
+                if (payload == null) {
+                    payload = codec.encode(entry, classTable);
+                }
+                position++;
+                
+                // describe the classes this entry uses for the first time
+                for (int i = classes; i < classTable.size(); i++) {
+                    dos.flush();
+                    classPositions.add(Long.valueOf(bos.size()));
+                    writeRecord(dos, CLASS_RECORD, classTable.describe(i));
+                }
+                dos.flush();
+                relative.add(bos.size(), RECORD_HEADER_SIZE + payload.length);
+                writeRecord(dos, ENTRY_RECORD, payload);
+            }
+            dos.flush();
+            start = write(ByteBuffer.wrap(bos.toByteArray()));
+        } catch (IOException e) {
+            // the class records have not been written
+            classTable.truncate(knownClasses);
+            throw e;
+        }
+        
+        synchronized (classOffsets) {
+            for (Long position: classPositions) {
+                classOffsets.add(start + position.longValue());
+            }
+        }
+        PersistentQueueIndex index = new PersistentQueueIndex();
+        for (int i = 0; i < relative.size(); i++) {
+            index.add(start + relative.getOffset(i), relative.getSize(i));
+        }
+        entryCount += entries.size();
+        return index;
+    }
+    
+    /** 
+     * Encodes the given elements for this file without appending them, e.g. 
+     * to learn the size of their records first. The class table of this file
+     * is left unchanged. Must not be called while entries are appended to 
+     * this file, whose classes the encoded elements could otherwise refer to
+     * before they have been described.
+     * @return the encoding, which can be passed to 
+     *         {@link #appendEntries(Collection, List)} with the elements
+     */
+    Encoding encode(Collection<?> entries) throws IOException {
+        PersistentQueueClassTable table = classTable.copy();
+        int knownClasses = table.size();
+        List<byte[]> payloads = new ArrayList<byte[]>(entries.size());
+        int reusable = 0;
+        long size = 0;
+        for (Object entry: entries) {
+            byte[] payload = codec.encode(entry, table);
+            if (table.size() == knownClasses) {
+                // refers only to classes this file describes, which keep their index
+                reusable++;
+            }
+            payloads.add(payload);
+            size += RECORD_HEADER_SIZE + payload.length;
+        }
+        return new Encoding(this, payloads, reusable, size);
+    }
+    
+    /** Appends a head record with the sequence number of the new head element. */
+    void appendHead(long headSequence) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(bos);
+        writeRecord(dos, HEAD_RECORD, ByteBuffer.allocate(8).putLong(headSequence).array());
+        dos.flush();
+        write(ByteBuffer.wrap(bos.toByteArray()));
+        headFloor = Math.max(headFloor, headSequence);
+    }
+    
+    /**
+     * Reads all records of an opened file without deserializing any element.
+     * Adds the classes described by class records to the class table, counts 
+     * the entry records and determines the effect of the head records, see 
+     * {@link #applyHeadRecords(long)}. Must be called once before reading 
+     * elements from an opened file.
+     */
+    void scan() throws IOException {
+        RecordInput in = new RecordInput();
+        entryCount = entriesBefore;
+        
+        // offset after the last complete record
+        long end = in.nextOffset;
+        try {
+            while (readsCompleteRecord(in)) {
+                switch (in.type) {
+                case ENTRY_RECORD:
+                    in.verifyPayload();
+                    entryCount++;
+                    break;
+                case CLASS_RECORD:
+                    classOffsets.add(in.offset);
+                    classTable.read(in.readPayload());
+                    break;
+                case HEAD_RECORD:
+                    byte[] payload = in.readPayload();
+                    if (payload.length != 8) {
+                        throw new IOException("Invalid head record in " + file);
+                    }
+                    headFloor = Math.max(headFloor, ByteBuffer.wrap(payload).getLong());
+                    break;
+                }
+                end = in.nextOffset;
+            }
+        } catch (ChecksumException e) {
+            // a record that has only been written in part, the end of the records
+        } finally {
+            in.close();
+        }
+        
+        if (end < length) {
+            // cut off a record written in part, or the zero bytes a memory-mapped file
+            // has been extended with
+            openChannel().truncate(end);
+            length = end;
+            syncedLength = Math.min(syncedLength, length);
+        }
+    }
+    
+    /** 
+     * Advances the given input to the next record, if the file holds all of 
+     * it. A process that dies while appending records can leave the last of
+     * them incomplete, which is treated like the end of the file. So is a 
+     * record header that cannot have been written completely: one with an 
+     * unknown type, a negative length or a length beyond the end of the file.
+     */
+    private boolean readsCompleteRecord(RecordInput in) throws IOException {
+        try {
+            return in.next() && (in.type == ENTRY_RECORD || in.type == CLASS_RECORD 
+                    || in.type == HEAD_RECORD) && in.length >= 0 && in.nextOffset <= length;
+        } catch (EOFException e) {
+            // the type of a record, but not all of its length or checksum
+            return false;
+        }
+    }
+    
+    /** 
+     * Returns a reader for the elements of this file, which skips the given 
+     * number of entry records without deserializing them.
+     */
+    Reader reader(long skipEntries) throws IOException {
+        if (skipEntries < entriesBefore) {
+            throw new IOException("Entries before the checkpoint of " + file + " cannot be read");
+        }
+        return new Reader(skipEntries - entriesBefore);
+    }
+    
+    /** 
+     * Reads the elements of the given number of entry records, starting with 
+     * the entry record at the given offset. All classes they use have to be in
+     * the class table already, i.e. the file has been scanned or written by
+     * this instance.
+     * @param offset offset of the first entry record to read
+     * @param count number of entry records to read
+     * @return the elements, in file order
+     * @throws IOException if an I/O error occurs or the file holds fewer entry records
+     */
+    List<Object> readEntries(long offset, int count) throws IOException {
+        List<Object> entries = new ArrayList<Object>(count);
+        RecordInput in = new RecordInput(offset);
+        try {
+            while (entries.size() < count) {
+                if (!in.next()) {
+                    throw new EOFException("Unexpected end of file " + file);
+                }
+                if (in.type == ENTRY_RECORD) {
+                    entries.add(codec.decode(in.readPayloadBuffer(), classTable));
+                } else {
+                    in.skipPayload();
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+    
+    /** 
+     * Returns the payloads of the class records before the given offset, which
+     * a checkpoint at that offset has to hold.
+     */
+    List<byte[]> describeClassesBefore(long offset) throws IOException {
+        List<byte[]> classRecords = new ArrayList<byte[]>();
+        synchronized (classOffsets) {
+            for (int i = 0; i < classOffsets.size() && classOffsets.get(i) < offset; i++) {
+                classRecords.add(classTable.describe(i));
+            }
+        }
+        return classRecords;
+    }
+    
+    /** 
+     * Appends the entry and class records of the given file from offset 
+     * <code>start</code> up to offset <code>end</code> as they are, without
+     * deserializing them. Only the type and length of each record are read;
+     * runs of records are copied by <code>FileChannel.transferTo()</code>, 
+     * which lets the operating system copy them without passing them through
+     * the Java heap, unless this file is memory-mapped. Head records are left
+     * out, the caller has to append a head record if needed. The classes the
+     * source file described before <code>start</code> that this file does not
+     * describe yet are described by class records written first, so that both
+     * files describe the same classes in the same order.
+     * @param source the file to copy the records from
+     * @param start offset of the first record to copy
+     * @param end offset after the last record to copy
+     * @return the positions of the copied entry records, in file order
+     * @throws IOException if an I/O error occurs
+     */
+    PersistentQueueIndex transferRecords(PersistentQueueFile source, long start, long end) 
+            throws IOException {
+        List<Long> sourceClassOffsets;
+        synchronized (source.classOffsets) {
+            sourceClassOffsets = new ArrayList<Long>(source.classOffsets);
+        }
+        
+        appendLock.lock();
+        try {
+            // describe the classes from before the range that the copied records may use
+            for (int i = classTable.size(); 
+                    i < sourceClassOffsets.size() && sourceClassOffsets.get(i) < start; i++) {
+                byte[] classRecord = source.classTable.describe(i);
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                DataOutputStream dos = new DataOutputStream(bos);
+                writeRecord(dos, CLASS_RECORD, classRecord);
+                dos.flush();
+                long offset = write(ByteBuffer.wrap(bos.toByteArray()));
+                classTable.read(classRecord);
+                synchronized (classOffsets) {
+                    classOffsets.add(offset);
+                }
+            }
+            
+            PersistentQueueIndex index = new PersistentQueueIndex();
+            RecordInput in = source.new RecordInput(start);
+            FileInputStream fis = new FileInputStream(source.file);
+            try {
+                FileChannel sourceChannel = fis.getChannel();
+                
+                // the run of records that is copied next
+                long runStart = start;
+                while (in.nextOffset < end) {
+                    if (!in.next()) {
+                        throw new EOFException("Unexpected end of file " + source.file);
+                    }
+                    long offset = length + in.offset - runStart;
+                    switch (in.type) {
+                    case ENTRY_RECORD:
+                        index.add(offset, RECORD_HEADER_SIZE + in.length);
+                        in.skipPayload();
+                        break;
+                    case CLASS_RECORD:
+                        classTable.read(in.readPayload());
+                        synchronized (classOffsets) {
+                            classOffsets.add(offset);
+                        }
+                        break;
+                    case HEAD_RECORD:
+                        in.skipPayload();
+                        transfer(sourceChannel, runStart, in.offset);
+                        runStart = in.nextOffset;
+                        break;
+                    default:
+                        throw new IOException("Cannot copy record type " + in.type 
+                                + " of " + source.file);
+                    }
+                }
+                transfer(sourceChannel, runStart, in.nextOffset);
+            } finally {
+                in.close();
+                fis.close();
+            }
+            entryCount += index.size();
+            return index;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+    
+    /** 
+     * Appends the bytes of the given channel from offset <code>start</code> up
+     * to offset <code>end</code>. Called while holding the append lock.
+     */
+    private void transfer(FileChannel source, long start, long end) throws IOException {
+        if (mapped) {
+            // the bytes have to go into the mapped memory, the channel cannot write there
+            ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(end - start, 64 * 1024));
+            for (long position = start; position < end; ) {
+                buffer.clear();
+                buffer.limit((int)Math.min(buffer.capacity(), end - position));
+                if (source.read(buffer, position) < 0) {
+                    throw new EOFException("Unexpected end of file");
+                }
+                buffer.flip();
+                position += buffer.remaining();
+                write(buffer);
+            }
+            return;
+        }
+        FileChannel fileChannel = openChannel();
+        fileChannel.position(length);
+        long copied = 0;
+        while (copied < end - start) {
+            long transferred = source.transferTo(start + copied, end - start - copied, 
+                    fileChannel);
+            if (transferred <= 0) {
+                throw new EOFException("Unexpected end of file");
+            }
+            copied += transferred;
+        }
+        length += copied;
+    }
+    
+    /** 
+     * Lets {@link #scan()} and {@link #reader(long)} start at the offset of 
+     * the given checkpoint instead of the file header. Must be called before
+     * scan(), and only with a checkpoint that matches this file.
+     * @return false if there is no entry record at the offset of the checkpoint,
+     *         in which case the file is left unchanged
+     */
+    boolean restore(PersistentQueueCheckpoint checkpoint) throws IOException {
+        if (checkpoint.offset < length) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                raf.seek(checkpoint.offset);
+                if (raf.read() != ENTRY_RECORD) {
+                    return false;
+                }
+            } finally {
+                raf.close();
+            }
+        }
+        
+        for (byte[] classRecord: checkpoint.classRecords) {
+            classOffsets.add(Long.valueOf(HEADER_SIZE));
+            classTable.read(classRecord);
+        }
+        restoredClasses = checkpoint.classRecords.size();
+        startOffset = checkpoint.offset;
+        entriesBefore = checkpoint.sequence - firstSequence;
+        headFloor = Math.max(headFloor, checkpoint.sequence);
+        return true;
+    }
+    
+    /** Writes a single record to the given stream. */
+    private void writeRecord(DataOutputStream dos, int type, byte[] payload) 
+            throws IOException {
+        dos.writeByte(type);
+        dos.writeInt(payload.length);
+        dos.writeInt(checksum(type, ByteBuffer.wrap(payload)));
+        dos.write(payload);
+    }
+    
+    /** 
+     * Returns the checksum of a record with the given type and the remaining
+     * bytes of the given buffer as payload: the CRC32C of its type, length and
+     * payload. The position of the buffer is not changed.
+     */
+    private static int checksum(int type, ByteBuffer payload) {
+        CRC32C crc = new CRC32C();
+        int length = payload.remaining();
+        crc.update(type);
+        crc.update(length >>> 24);
+        crc.update(length >>> 16);
+        crc.update(length >>> 8);
+        crc.update(length);
+        crc.update(payload.duplicate());
+        return (int)crc.getValue();
+    }
+    
+    /** 
+     * Forces all records up to the given position to disk. If another thread 
+     * is already forcing the file, waits for it to finish first; if its force 
+     * covered the position, no further force is needed.
+     * @param position the file size that should be on disk when this method returns
+     * @throws IOException if an I/O error occurs
+     */
+    void sync(long position) throws IOException {
+        FileChannel syncChannel;
+        long from;
+        syncLock.lock();
+        try {
+            while (syncing && syncedLength < position) {
+                try {
+                    syncDone.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for sync");
+                }
+            }
+            if (syncedLength >= position || channel == null) {
+                return;
+            }
+            syncing = true;
+            syncChannel = channel;
+            from = syncedLength;
+        } finally {
+            syncLock.unlock();
+        }
+        
+        // everything written so far is covered by this force
+        long target = length;
+        boolean synced = false;
+        try {
+            long start = System.nanoTime();
+            if (mapped) {
+                MappedByteBuffer[] current = regions;
+                for (long i = from / MAP_REGION_SIZE; 
+                        i < current.length && i * MAP_REGION_SIZE < target; i++) {
+                    current[(int)i].force();
+                }
+                if (extended) {
+                    // the size of the file has changed as well
+                    extended = false;
+                    syncChannel.force(true);
+                }
+            } else {
+                syncChannel.force(false);
+            }
+            statistics.recordSync(System.nanoTime() - start);
+            synced = true;
+        } finally {
+            syncLock.lock();
+            try {
+                syncing = false;
+                if (synced) {
+                    syncedLength = Math.max(syncedLength, target);
+                }
+                syncDone.signalAll();
+            } finally {
+                syncLock.unlock();
+            }
+        }
+    }
+    
+    /** 
+     * Closes the channel of this file, if it is open. Waits for a force that is
+     * in progress to finish first. Threads waiting in {@link #sync(long)} are
+     * released, so callers that need the contents on disk have to sync first.
+     */
+    void close() throws IOException {
+        appendLock.lock();
+        try {
+            syncLock.lock();
+            try {
+                boolean interrupted = false;
+                while (syncing) {
+                    try {
+                        syncDone.await();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            
+                syncedLength = length;
+                syncDone.signalAll();
+                if (channel != null) {
+                    if (mapped) {
+                        regions = new MappedByteBuffer[0];
+                        try {
+                            channel.truncate(length);
+                        } catch (IOException e) {
+                            // some platforms cannot truncate a file while it is mapped,
+                            // the zero bytes are cut off when it is opened again
+                        }
+                    }
+                    channel.close();
+                    channel = null;
+                }
+            } finally {
+                syncLock.unlock();
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+    
+    /** 
+     * Marks this file as complete, i.e. nothing will be appended to it anymore,
+     * and closes it. A memory-mapped file is no longer mapped from then on, 
+     * since mapping it for reading would extend it; it is read through a 
+     * stream instead.
+     */
+    void seal() throws IOException {
+        sealed = true;
+        close();
+    }
+    
+    /** Returns the channel of this file, opening it if necessary. */
+    private FileChannel openChannel() throws IOException {
+        syncLock.lock();
+        try {
+            if (channel == null) {
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            }
+            return channel;
+        } finally {
+            syncLock.unlock();
+        }
+    }
+    
+    /** 
+     * Appends the remaining bytes of the given buffer to the file.
+     * @return the offset the bytes have been written at
+     */
+    private long write(ByteBuffer buffer) throws IOException {
+        appendLock.lock();
+        try {
+            long start = length;
+            if (mapped) {
+                long position = length;
+                while (buffer.hasRemaining()) {
+                    ByteBuffer region = mapRegion(position).duplicate();
+                    region.position((int)(position % MAP_REGION_SIZE));
+                    int count = Math.min(buffer.remaining(), region.remaining());
+                    ByteBuffer part = buffer.duplicate();
+                    part.limit(part.position() + count);
+                    region.put(part);
+                    buffer.position(buffer.position() + count);
+                    position += count;
+                }
+                length = position;
+            } else {
+                FileChannel fileChannel = openChannel();
+                while (buffer.hasRemaining()) {
+                    length += fileChannel.write(buffer, length);
+                }
+            }
+            return start;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+    
+    /** 
+     * Returns the mapping of the region of a memory-mapped file that holds 
+     * the given offset, mapping it and all regions before it first if needed.
+     * Called while holding the append lock.
+     */
+    private MappedByteBuffer mapRegion(long offset) throws IOException {
+        int number = (int)(offset / MAP_REGION_SIZE);
+        MappedByteBuffer[] current = regions;
+        if (number < current.length) {
+            return current[number];
+        }
+        
+        FileChannel fileChannel = openChannel();
+        MappedByteBuffer[] grown = new MappedByteBuffer[number + 1];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        for (int i = current.length; i <= number; i++) {
+            grown[i] = fileChannel.map(FileChannel.MapMode.READ_WRITE, 
+                    (long)i * MAP_REGION_SIZE, MAP_REGION_SIZE);
+        }
+        extended = true;
+        regions = grown;
+        return grown[number];
+    }
+    
+    /** 
+     * Reads the records of a file one at a time, starting after the file header
+     * or at a restored checkpoint unless another offset is given.
+     */
+    private class RecordInput {
+        final DataInputStream dis;
+        
+        /** The mappings <code>dis</code> reads from, or null if it reads from a stream. */
+        private final MappedInput mappedInput;
+        
+        /** Type of the current record. */
+        int type;
+        
+        /** Payload length of the current record. */
+        int length;
+        
+        /** Checksum of the current record, if the file has checksums. */
+        private int checksum;
+        
+        /** Buffer for verifying payloads that are not kept, or null. */
+        private byte[] scratch;
+        
+        /** Offset of the current record. */
+        long offset;
+        
+        /** Offset of the next record. */
+        private long nextOffset;
+        
+        RecordInput() throws IOException {
+            this(startOffset);
+        }
+        
+        RecordInput(long offset) throws IOException {
+            // the mappings have to cover all records up to the length read first
+            long end = PersistentQueueFile.this.length;
+            MappedByteBuffer[] current = regions;
+            if (mapped && !sealed && (long)current.length * MAP_REGION_SIZE < end) {
+                appendLock.lock();
+                try {
+                    mapRegion(end - 1);
+                    current = regions;
+                } finally {
+                    appendLock.unlock();
+                }
+            }
+            if (current.length > 0 && (long)current.length * MAP_REGION_SIZE >= end) {
+                mappedInput = new MappedInput(current, offset, end);
+                dis = new DataInputStream(mappedInput);
+            } else {
+                mappedInput = null;
+                FileInputStream fis = new FileInputStream(file);
+                fis.getChannel().position(offset);
+                dis = new DataInputStream(new BufferedInputStream(fis));
+            }
+            nextOffset = offset;
+        }
+        
+        /** 
+         * Advances to the next record, whose payload has to be read or skipped
+         * before calling this method again.
+         * @return false if the end of the file has been reached
+         */
+        boolean next() throws IOException {
+            type = dis.read();
+            if (type <= 0) {
+                // the end of the file, or the zero bytes after the records of a mapped file
+                return false;
+            }
+            length = dis.readInt();
+            checksum = dis.readInt();
+            offset = nextOffset;
+            nextOffset += RECORD_HEADER_SIZE + length;
+            return true;
+        }
+        
+        /** 
+         * Reads the payload of the current record.
+         * @throws ChecksumException if the payload does not match the checksum of the record
+         */
+        byte[] readPayload() throws IOException {
+            byte[] payload = new byte[length];
+            dis.readFully(payload);
+            verify(ByteBuffer.wrap(payload));
+            return payload;
+        }
+        
+        /** 
+         * Reads the payload of the current record into a buffer. The payload of
+         * a memory-mapped file is not copied, the buffer is a read-only slice 
+         * of its mapping instead.
+         * @throws ChecksumException if the payload does not match the checksum of the record
+         */
+        ByteBuffer readPayloadBuffer() throws IOException {
+            ByteBuffer payload = mappedInput == null ? null : mappedInput.slice(length);
+            if (payload == null) {
+                return ByteBuffer.wrap(readPayload());
+            }
+            verify(payload);
+            return payload;
+        }
+        
+        /** 
+         * Skips the payload of the current record, after verifying it against
+         * the checksum of the record.
+         * @throws ChecksumException if the payload does not match the checksum of the record
+         */
+        void verifyPayload() throws IOException {
+            ByteBuffer payload = mappedInput == null ? null : mappedInput.slice(length);
+            if (payload == null) {
+                if (scratch == null || scratch.length < length) {
+                    scratch = new byte[Math.max(length, 8192)];
+                }
+                dis.readFully(scratch, 0, length);
+                payload = ByteBuffer.wrap(scratch, 0, length);
+            }
+            verify(payload);
+        }
+        
+        /** Throws a ChecksumException if the given payload does not match the current record. */
+        private void verify(ByteBuffer payload) throws ChecksumException {
+            if (checksum(type, payload) != checksum) {
+                throw new ChecksumException("Checksum mismatch in record at offset " 
+                        + offset + " of " + file);
+            }
+        }
+        
+        /** Skips the payload of the current record. */
+        void skipPayload() throws IOException {
+            skipFully(length);
+        }
+        
+        private void skipFully(int count) throws IOException {
+            if (dis.skipBytes(count) != count) {
+                throw new EOFException("Unexpected end of file " + file);
+            }
+        }
+        
+        void close() throws IOException {
+            dis.close();
+        }
+    }
+    
+    /** 
+     * Payloads of the entry records of elements, encoded for a file before 
+     * they are appended to it, see {@link PersistentQueueFile#encode(Collection)}.
+     */
+    static class Encoding {
+        /** The file the elements have been encoded for. */
+        private final PersistentQueueFile file;
+        
+        /** Payloads of the entry records, in the order of the elements. */
+        private final List<byte[]> payloads;
+        
+        /** 
+         * Number of payloads at the start of payloads that only refer to 
+         * classes the file described, and can be appended to it as they are.
+         */
+        private final int reusable;
+        
+        /** Size of the entry records in bytes, without the class records they may need. */
+        final long size;
+        
+        private Encoding(PersistentQueueFile file, List<byte[]> payloads, int reusable, 
+                long size) {
+            this.file = file;
+            this.payloads = payloads;
+            this.reusable = reusable;
+            this.size = size;
+        }
+    }
+    
+    /** Signals a record whose payload does not match its checksum. */
+    static class ChecksumException extends IOException {
+        private final static long serialVersionUID = 1;
+        
+        ChecksumException(String message) {
+            super(message);
+        }
+    }
+    
+    /** 
+     * Reads the bytes of a memory-mapped file from its mappings, up to the 
+     * length the file had when reading started.
+     */
+    private static class MappedInput extends InputStream {
+        private final MappedByteBuffer[] mappings;
+        private long position;
+        private final long end;
+        
+        MappedInput(MappedByteBuffer[] mappings, long position, long end) {
+            this.mappings = mappings;
+            this.position = position;
+            this.end = end;
+        }
+        
+        public int read() {
+            if (position >= end) {
+                return -1;
+            }
+            int value = mappings[(int)(position / MAP_REGION_SIZE)]
+                .get((int)(position % MAP_REGION_SIZE)) & 0xff;
+            position++;
+            return value;
+        }
+        
+        public int read(byte[] bytes, int offset, int count) {
+            if (position >= end) {
+                return -1;
+            }
+            ByteBuffer region = mappings[(int)(position / MAP_REGION_SIZE)].duplicate();
+            region.position((int)(position % MAP_REGION_SIZE));
+            count = (int)Math.min(Math.min(count, region.remaining()), end - position);
+            region.get(bytes, offset, count);
+            position += count;
+            return count;
+        }
+        
+        public long skip(long count) {
+            count = Math.max(0, Math.min(count, end - position));
+            position += count;
+            return count;
+        }
+        
+        /** 
+         * Returns the next bytes as a read-only slice of their mapping and skips
+         * them, or returns null if they are not all in the same region.
+         */
+        ByteBuffer slice(int count) {
+            int start = (int)(position % MAP_REGION_SIZE);
+            if (position + count > end || start + count > MAP_REGION_SIZE) {
+                return null;
+            }
+            ByteBuffer region = mappings[(int)(position / MAP_REGION_SIZE)].duplicate();
+            region.position(start);
+            region.limit(start + count);
+            position += count;
+            return region.slice().asReadOnlyBuffer();
+        }
+    }
+    
+    /** 
+     * Reads the elements of the entry records of a file, in order. Class records
+     * that are not yet in the class table of the file are added to it. Entry 
+     * records are only read and deserialized if {@link #getEntry()} is called.
+     */
+    class Reader {
+        private final RecordInput in = new RecordInput();
+        
+        /** Number of entry records still to skip. */
+        private long skipEntries;
+        
+        /** Number of class records seen so far. */
+        private int classes;
+        
+        /** Has the payload of the current entry record not been read yet? */
+        private boolean pending = false;
+        
+        private Reader(long skipEntries) throws IOException {
+            this.skipEntries = skipEntries;
+            
+            // the classes before a restored checkpoint are not read again
+            classes = restoredClasses;
+        }
+        
+        /** 
+         * Advances to the next entry record that is not skipped.
+         * @return false if the end of the file has been reached
+         */
+        boolean next() throws IOException {
+            if (pending) {
+                in.skipPayload();
+                pending = false;
+            }
+            while (in.next()) {
+                if (in.type == ENTRY_RECORD && skipEntries == 0) {
+                    pending = true;
+                    return true;
+                } else if (in.type == ENTRY_RECORD) {
+                    skipEntries--;
+                    in.skipPayload();
+                } else if (in.type == CLASS_RECORD && classes++ == classTable.size()) {
+                    classOffsets.add(in.offset);
+                    classTable.read(in.readPayload());
+                } else {
+                    in.skipPayload();
+                }
+            }
+            return false;
+        }
+        
+        /** Returns the offset of the current entry record. */
+        long getOffset() {
+            return in.offset;
+        }
+        
+        /** Returns the size of the current entry record in bytes. */
+        int getSize() {
+            return RECORD_HEADER_SIZE + in.length;
+        }
+        
+        /** Decodes the element of the current entry record. */
+        Object getEntry() throws IOException {
+            pending = false;
+            return codec.decode(in.readPayloadBuffer(), classTable);
+        }
+        
+        void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright (c) 2005 Gabor Cselle.
+ * 
+ * The author can be reached at:
+ * Gabor Cselle (mail at gaborcselle dot com)
+ * 
+ * Redistribution and use in source and binary forms with or without
+ * modification are permitted provided that source distributions retain this
+ * entire copyright notice and comment.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND WITHOUT ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *******************************************************************************/
+
+package com.gaborcselle.persistent;
+
+import java.util.NoSuchElementException;
+
+/** 
+ * Helper class for {@link com.gaborcselle.persistent.PersistentQueue}.
+ * The positions of the entry records of the elements in a queue, in queue 
+ * order: the offset of each record in its file and its size in bytes. Kept in
+ * a growable ring buffer of parallel arrays, so that positions are neither 
+ * boxed nor linked.
+ * 
+ * @author Gabor Cselle
+ * @version 1.0
+ */
+class PersistentQueueIndex {
+    private long[] offsets = new long[16];
+    private int[] sizes = new int[16];
+    
+    /** Index of the first position in the ring buffer. */
+    private int first = 0;
+    
+    private int size = 0;
+    
+    /** Sum of the sizes of all records. */
+    private long totalSize = 0;
+    
+    /** Returns the number of positions. */
+    int size() {
+        return size;
+    }
+    
+    /** Returns the sum of the sizes of all records in bytes. */
+    long getTotalSize() {
+        return totalSize;
+    }
+    
+    /** Adds the position of a record to the end. */
+    void add(long offset, int recordSize) {
+        if (size == offsets.length) {
+            long[] grownOffsets = new long[offsets.length * 2];
+            int[] grownSizes = new int[offsets.length * 2];
+            for (int i = 0; i < size; i++) {
+                grownOffsets[i] = offsets[(first + i) % offsets.length];
+                grownSizes[i] = sizes[(first + i) % offsets.length];
+            }
+            offsets = grownOffsets;
+            sizes = grownSizes;
+            first = 0;
+        }
+        offsets[(first + size) % offsets.length] = offset;
+        sizes[(first + size) % offsets.length] = recordSize;
+        size++;
+        totalSize += recordSize;
+    }
+    
+    /** Adds all positions of the given index to the end. */
+    void addAll(PersistentQueueIndex index) {
+        for (int i = 0; i < index.size(); i++) {
+            add(index.getOffset(i), index.getSize(i));
+        }
+    }
+    
+    /** Returns the offset of the record with the given index, counted from the first. */
+    long getOffset(int index) {
+        if (index < 0 || index >= size) {
+            throw new NoSuchElementException();
+        }
+        return offsets[(first + index) % offsets.length];
+    }
+    
+    /** Returns the size of the record with the given index, counted from the first. */
+    int getSize(int index) {
+        if (index < 0 || index >= size) {
+            throw new NoSuchElementException();
+        }
+        return sizes[(first + index) % offsets.length];
+    }
+    
+    /** Removes the given number of positions from the front. */
+    void removeFirst(int count) {
+        if (count > size) {
+            throw new NoSuchElementException();
+        }
+        for (int i = 0; i < count; i++) {
+            totalSize -= sizes[(first + i) % offsets.length];
+        }
+        first = (first + count) % offsets.length;
+        size -= count;
+    }
+    
+    /** Removes all positions. */
+    void clear() {
+        first = 0;
+        size = 0;
+        totalSize = 0;
+    }
+}
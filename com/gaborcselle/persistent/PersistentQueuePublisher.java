@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright (c) 2005 Gabor Cselle.
+ * 
+ * The author can be reached at:
+ * Gabor Cselle (mail at gaborcselle dot com)
+ * 
+ * Redistribution and use in source and binary forms with or without
+ * modification are permitted provided that source distributions retain this
+ * entire copyright notice and comment.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND WITHOUT ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *******************************************************************************/
+
+package com.gaborcselle.persistent;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A <code>java.util.concurrent.Flow.Publisher</code> view of a 
+ * {@link com.gaborcselle.persistent.PersistentQueue}, for consuming the 
+ * queue as a reactive stream. Elements are emitted to the subscriber in queue
+ * order as they arrive, as far as the subscriber has requested them, from 
+ * threads of an <code>Executor</code>. Only elements that are as durable as 
+ * the durability policy of the queue requires are emitted.
+ * <P>
+ * The executor also reads and removes the elements, so it blocks on I/O. By
+ * default, each publisher has a thread of its own for this, which ends when
+ * it has been idle for a while. A shared pool such as 
+ * <code>ForkJoinPool.commonPool()</code> should not be passed instead.
+ * <P>
+ * An element is not removed from the queue when it is emitted. By default, it
+ * is removed once <code>onNext()</code> has returned for it. A publisher can
+ * instead be created to remove elements only when the subscriber acknowledges
+ * them, see {@link PersistentQueueSubscription#acknowledge(int)}. Elements 
+ * that were emitted but not removed when a subscription ends are emitted again
+ * to the next subscriber, or after the queue is created again.
+ * <P>
+ * A publisher has at most one subscriber at a time; a second subscriber is 
+ * rejected with an <code>IllegalStateException</code> until the subscription
+ * of the first one has ended. Elements should not be removed from the queue 
+ * by other means while it has a subscriber. If they are, they are skipped.
+ * When the queue is closed or an I/O error occurs, the subscriber receives 
+ * <code>onError()</code> with an <code>IOException</code>.
+ * 
+ * @author Gabor Cselle
+ * @version 1.0
+ */
+public class PersistentQueuePublisher<E> implements Flow.Publisher<E> {
+    /** The queue whose elements are published. */
+    private final PersistentQueue<E> queue;
+    
+    /** Are elements removed once onNext() has returned for them? */
+    private final boolean autoAcknowledge;
+    
+    /** Executor the subscriber is called from. */
+    private final Executor executor;
+    
+    /** The current subscription, or null. Guarded by this publisher. */
+    private PersistentQueueSubscription<E> subscription;
+    
+    /**
+     * Create a publisher of the elements of the given queue, which removes
+     * each element once <code>onNext()</code> has returned for it. The
+     * subscriber is called from a thread of the publisher.
+     * @param queue the queue whose elements are published
+     */
+    public PersistentQueuePublisher(PersistentQueue<E> queue) {
+        this(queue, true);
+    }
+    
+    /**
+     * Create a publisher of the elements of the given queue. The subscriber 
+     * is called from a thread of the publisher.
+     * @param queue the queue whose elements are published
+     * @param autoAcknowledge true to remove each element once 
+     *        <code>onNext()</code> has returned for it, false to remove 
+     *        elements only when the subscriber acknowledges them
+     */
+    public PersistentQueuePublisher(PersistentQueue<E> queue, boolean autoAcknowledge) {
+        this(queue, autoAcknowledge, newExecutor());
+    }
+    
+    /**
+     * Create a publisher of the elements of the given queue.
+     * @param queue the queue whose elements are published
+     * @param autoAcknowledge true to remove each element once 
+     *        <code>onNext()</code> has returned for it, false to remove 
+     *        elements only when the subscriber acknowledges them
+     * @param executor executor to call the subscriber from, which also reads
+     *        and removes the elements and should therefore not be shared
+     */
+    public PersistentQueuePublisher(PersistentQueue<E> queue, boolean autoAcknowledge, 
+            Executor executor) {
+        if (queue == null || executor == null) {
+            throw new NullPointerException();
+        }
+        this.queue = queue;
+        this.autoAcknowledge = autoAcknowledge;
+        this.executor = executor;
+    }
+    
+    /**
+     * Adds the given subscriber, which receives a 
+     * {@link PersistentQueueSubscription}. If the publisher already has a 
+     * subscriber, the given one receives <code>onError()</code> with an 
+     * <code>IllegalStateException</code> instead.
+     * @param subscriber the subscriber
+     */
+    public void subscribe(Flow.Subscriber<? super E> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException();
+        }
+        PersistentQueueSubscription<E> added = new PersistentQueueSubscription<E>(
+                this, queue, subscriber, autoAcknowledge, executor);
+        boolean accepted;
+        synchronized (this) {
+            accepted = subscription == null;
+            if (accepted) {
+                subscription = added;
+            }
+        }
+        if (accepted) {
+            added.start();
+        } else {
+            added.reject(new IllegalStateException("Publisher already has a subscriber"));
+        }
+    }
+    
+    /** 
+     * Returns an executor with a single daemon thread, which ends when it has
+     * been idle for a minute.
+     */
+    private static Executor newExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, 
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable task) {
+                        Thread thread = new Thread(task, "PersistentQueue publisher");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+    
+    /** Called when the given subscription has ended, so that another one can start. */
+    synchronized void ended(PersistentQueueSubscription<E> ended) {
+        if (subscription == ended) {
+            subscription = null;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * Copyright (c) 2005 Gabor Cselle.
+ * 
+ * The author can be reached at:
+ * Gabor Cselle (mail at gaborcselle dot com)
+ * 
+ * Redistribution and use in source and binary forms with or without
+ * modification are permitted provided that source distributions retain this
+ * entire copyright notice and comment.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND WITHOUT ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *******************************************************************************/
+
+package com.gaborcselle.persistent;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/** 
+ * Statistics of a {@link com.gaborcselle.persistent.PersistentQueue}, for 
+ * tuning its durability policy and defragmentation against its throughput.
+ * All values are counted since the queue was created.
+ * 
+ * @author Gabor Cselle
+ * @version 1.0
+ */
+public class PersistentQueueStatistics {
+    private final AtomicLong syncCount = new AtomicLong();
+    private final AtomicLong syncNanos = new AtomicLong();
+    private final AtomicLong maxSyncNanos = new AtomicLong();
+    private final AtomicLong defragmentCount = new AtomicLong();
+    private final AtomicLong maxDefragmentPauseNanos = new AtomicLong();
+    
+    /** Records a force of the queue file to disk that took the given time. */
+    void recordSync(long nanos) {
+        syncCount.incrementAndGet();
+        syncNanos.addAndGet(nanos);
+        
+        updateMax(maxSyncNanos, nanos);
+    }
+    
+    /** 
+     * Records a defragmentation of the queue file that held up adding and 
+     * removing elements for the given time.
+     */
+    void recordDefragment(long pauseNanos) {
+        defragmentCount.incrementAndGet();
+        updateMax(maxDefragmentPauseNanos, pauseNanos);
+    }
+    
+    /** Raises the given maximum to the given value if it is smaller. */
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+    
+    /**
+     * Returns the number of times the queue file has been forced to disk.
+     * @return the number of forces
+     */
+    public long getSyncCount() {
+        return syncCount.get();
+    }
+    
+    /**
+     * Returns the total time spent forcing the queue file to disk.
+     * @return the total time in nanoseconds
+     */
+    public long getSyncTimeNanos() {
+        return syncNanos.get();
+    }
+    
+    /**
+     * Returns the longest time a single force of the queue file to disk took.
+     * @return the longest time in nanoseconds
+     */
+    public long getMaxSyncTimeNanos() {
+        return maxSyncNanos.get();
+    }
+    
+    /**
+     * Returns the average time a force of the queue file to disk took.
+     * @return the average time in nanoseconds, or 0 if there has been no force
+     */
+    public long getAverageSyncTimeNanos() {
+        long count = syncCount.get();
+        return count == 0 ? 0 : syncNanos.get() / count;
+    }
+    
+    /**
+     * Returns the number of times the queue file has been defragmented in the
+     * background.
+     * @return the number of defragmentations
+     */
+    public long getDefragmentCount() {
+        return defragmentCount.get();
+    }
+    
+    /**
+     * Returns the longest time a background defragmentation held up adding 
+     * and removing elements, while it switched to the defragmented file.
+     * @return the longest time in nanoseconds
+     */
+    public long getMaxDefragmentPauseNanos() {
+        return maxDefragmentPauseNanos.get();
+    }
+    
+    public String toString() {
+        return "syncs=" + getSyncCount() + ", avgSyncNanos=" + getAverageSyncTimeNanos() 
+            + ", maxSyncNanos=" + getMaxSyncTimeNanos() + ", defragments=" 
+            + getDefragmentCount() + ", maxDefragmentPauseNanos=" 
+            + getMaxDefragmentPauseNanos();
+    }
+}
@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * Copyright (c) 2005 Gabor Cselle.
+ * 
+ * The author can be reached at:
+ * Gabor Cselle (mail at gaborcselle dot com)
+ * 
+ * Redistribution and use in source and binary forms with or without
+ * modification are permitted provided that source distributions retain this
+ * entire copyright notice and comment.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS" AND WITHOUT ANY EXPRESS OR IMPLIED
+ * WARRANTIES, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTIES OF 
+ * MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE.
+ *******************************************************************************/
+
+package com.gaborcselle.persistent;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Helper class for {@link com.gaborcselle.persistent.PersistentQueuePublisher}.
+ * The subscription a subscriber of a publisher receives. Besides requesting 
+ * elements and cancelling, a subscriber of a publisher that does not remove 
+ * elements by itself acknowledges the elements it has processed, see
+ * {@link #acknowledge(int)}.
+ * <P>
+ * Elements are emitted by a task run on the executor of the publisher, which 
+ * is started when elements are requested or added to the queue, and runs 
+ * until there are no more elements or no more demand. Only one such task
+ * runs at a time, so the subscriber is never called concurrently.
+ * 
+ * @author Gabor Cselle
+ * @version 1.0
+ */
+public class PersistentQueueSubscription<E> implements Flow.Subscription {
+    /** Maximum number of elements read from the queue at a time. */
+    private final static int EMIT_BATCH_SIZE = 100;
+    
+    private final PersistentQueuePublisher<E> publisher;
+    private final PersistentQueue<E> queue;
+    private final Flow.Subscriber<? super E> subscriber;
+    private final boolean autoAcknowledge;
+    private final Executor executor;
+    
+    /** Number of elements requested but not emitted yet, Long.MAX_VALUE for no limit. */
+    private final AtomicLong demand = new AtomicLong();
+    
+    /** Number of times the task has been started, or asked to run again, but not run. */
+    private final AtomicInteger pendingRuns = new AtomicInteger();
+    
+    /** Has the subscription been cancelled or ended by an error? */
+    private volatile boolean ended = false;
+    
+    /** An error to signal to the subscriber, e.g. a request for no elements, or null. */
+    private volatile Throwable pendingError;
+    
+    /** Sequence number of the next element to emit. Only used by the task. */
+    private long position = 0;
+    
+    /** 
+     * Sequence numbers of the emitted elements that have not been acknowledged,
+     * oldest first. Guarded by its own monitor.
+     */
+    private final LinkedList<Long> unacknowledged = new LinkedList<Long>();
+    
+    /** Emits the elements that have been requested. */
+    private final Runnable task = new Runnable() {
+        public void run() {
+            int runs = 1;
+            while (true) {
+                emit();
+                runs = pendingRuns.addAndGet(-runs);
+                if (runs == 0) {
+                    return;
+                }
+            }
+        }
+    };
+    
+    /** Starts the task when elements have been added or the queue has been closed. */
+    private final Runnable listener = new Runnable() {
+        public void run() {
+            signal();
+        }
+    };
+    
+    PersistentQueueSubscription(PersistentQueuePublisher<E> publisher, PersistentQueue<E> queue, 
+            Flow.Subscriber<? super E> subscriber, boolean autoAcknowledge, Executor executor) {
+        this.publisher = publisher;
+        this.queue = queue;
+        this.subscriber = subscriber;
+        this.autoAcknowledge = autoAcknowledge;
+        this.executor = executor;
+    }
+    
+    /** Hands the subscription to the subscriber and starts listening to the queue. */
+    void start() {
+        subscriber.onSubscribe(this);
+        queue.addListener(listener);
+        signal();
+    }
+    
+    /** Hands the subscription to the subscriber, then ends it with the given error. */
+    void reject(Throwable error) {
+        ended = true;
+        subscriber.onSubscribe(this);
+        subscriber.onError(error);
+    }
+    
+    /**
+     * Requests the given number of elements in addition to those requested 
+     * before. A number that is not positive ends the subscription with an 
+     * <code>IllegalArgumentException</code>.
+     * @param count the number of elements to request
+     */
+    public void request(long count) {
+        if (count <= 0) {
+            pendingError = new IllegalArgumentException("Non-positive request: " + count);
+        } else {
+            while (true) {
+                long current = demand.get();
+                long updated = current + count < 0 ? Long.MAX_VALUE : current + count;
+                if (demand.compareAndSet(current, updated)) {
+                    break;
+                }
+            }
+        }
+        signal();
+    }
+    
+    /** 
+     * Ends the subscription. Elements that have been emitted are still removed
+     * as far as <code>onNext()</code> has returned for them, or when they are 
+     * acknowledged.
+     */
+    public void cancel() {
+        end();
+    }
+    
+    /**
+     * Removes the given number of elements from the queue: the oldest emitted 
+     * elements that have not been acknowledged yet. Only used if the publisher
+     * has been created not to remove elements by itself.
+     * @param count the number of elements to acknowledge
+     * @throws IOException if an I/O error occurs
+     * @throws IllegalArgumentException if fewer elements have been emitted and 
+     *         not acknowledged
+     * @throws IllegalStateException if the publisher removes elements by itself
+     */
+    public void acknowledge(int count) throws IOException {
+        if (autoAcknowledge) {
+            throw new IllegalStateException("Elements are acknowledged automatically");
+        }
+        long end = -1;
+        synchronized (unacknowledged) {
+            if (count > unacknowledged.size()) {
+                throw new IllegalArgumentException("Only " + unacknowledged.size() 
+                        + " elements have not been acknowledged");
+            }
+            for (int i = 0; i < count; i++) {
+                end = unacknowledged.removeFirst().longValue() + 1;
+            }
+        }
+        if (end >= 0) {
+            queue.removeBefore(end);
+        }
+    }
+    
+    /** Starts the task, or makes it run again if it is running. */
+    private void signal() {
+        if (pendingRuns.getAndIncrement() == 0) {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                fail(e);
+            }
+        }
+    }
+    
+    /** Emits elements as long as there are elements and demand for them. Run by the task. */
+    private void emit() {
+        while (!ended) {
+            Throwable error = pendingError;
+            if (error != null) {
+                fail(error);
+                return;
+            }
+            
+            long requested = demand.get();
+            List<E> entries;
+            try {
+                // skip elements that have been removed by other means
+                position = Math.max(position, queue.getHeadSequence());
+                // reads no elements without demand, but still fails if the queue is closed
+                entries = queue.peek(position, (int)Math.min(requested, EMIT_BATCH_SIZE));
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            if (entries.isEmpty()) {
+                if (requested > 0 && position < queue.getHeadSequence()) {
+                    // the elements have been removed in the meantime
+                    continue;
+                }
+                return;
+            }
+            
+            try {
+                for (E entry: entries) {
+                    if (ended) {
+                        break;
+                    }
+                    if (!autoAcknowledge) {
+                        synchronized (unacknowledged) {
+                            unacknowledged.add(Long.valueOf(position));
+                        }
+                    }
+                    position++;
+                    if (requested != Long.MAX_VALUE) {
+                        demand.decrementAndGet();
+                    }
+                    subscriber.onNext(entry);
+                    if (autoAcknowledge) {
+                        // a crash must not lose an element onNext() has not returned for
+                        queue.removeBefore(position);
+                    }
+                }
+            } catch (RuntimeException e) {
+                // a subscriber that throws is considered to have cancelled
+                end();
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+        }
+    }
+    
+    /** Ends the subscription and hands the given error to the subscriber. */
+    private void fail(Throwable error) {
+        if (end()) {
+            subscriber.onError(error);
+        }
+    }
+    
+    /** 
+     * Ends the subscription, so that the publisher can accept another subscriber.
+     * @return false if the subscription had already ended
+     */
+    private boolean end() {
+        synchronized (this) {
+            if (ended) {
+                return false;
+            }
+            ended = true;
+        }
+        queue.removeListener(listener);
+        publisher.ended(this);
+        return true;
+    }
+}
@@ -16,6 +16,29 @@
 package com.gaborcselle.persistent;
 
 import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 
@@ -29,17 +52,19 @@ public class PersistentQueueTest extends TestCase {
     /** Filename of queue file that should be used for testing. */
     private static final String TEST_FILENAME = "D:\\cvs\\testdata\\persQueueTest.queue";
     private PersistentQueue<PersistentQueueTestEntry> pqueue;
+    
+    /** Queues that have been lost by {@link #loseQueue()}. */
+    private List<PersistentQueue<?>> lostQueues = new ArrayList<PersistentQueue<?>>();
 
     /** 
-     * Set up unit test - delete the test file if it already exists,
+     * Set up unit test - delete the test files if any exist,
      * instantiate PersistentQueue.
      */
     protected void setUp() throws Exception {
         super.setUp();
         
-        // delete file, if any exists
-        File deleteFile = new File(TEST_FILENAME);
-        deleteFile.delete();
+        // delete files, if any exist
+        deleteTestFiles();
         
         pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME);
     }
@@ -94,6 +119,12 @@ public class PersistentQueueTest extends TestCase {
         pqueue.clear();
         
         assertEquals(pqueue.remove(), null);
+        assertNull(pqueue.peek());
+        
+        pqueue.add(new PersistentQueueTestEntry("one"));
+        assertEquals("one", pqueue.peek().content);
+        pqueue.clear();
+        assertNull(pqueue.peek());
     }
     
     /** Simulate a crash and reload of the PersistentQueue. */
@@ -103,7 +134,114 @@ public class PersistentQueueTest extends TestCase {
         pqueue.add(new PersistentQueueTestEntry ("two"));
         
         // lose pqueue now (e.g. because of system crash) and create a new one
+        loseQueue();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME);
+        assertEquals(2, pqueue.size());
+    }
+    
+    /** 
+     * Test that a record written in part by a crash, or that does not match 
+     * its checksum, is cut off when the queue is opened again.
+     */
+    public void testTornTail() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            pqueue.add(new PersistentQueueTestEntry(String.valueOf(i)));
+        }
+        pqueue.close();
+        long length = new File(TEST_FILENAME).length();
+        
+        // the start of an entry record with a payload of 100 bytes
+        FileOutputStream fos = new FileOutputStream(TEST_FILENAME, true);
+        fos.write(new byte[] { 1, 0, 0, 0, 100, 1, 2, 3 });
+        fos.close();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME);
+        assertEquals(10, pqueue.size());
+        assertEquals(length, new File(TEST_FILENAME).length());
+        pqueue.add(new PersistentQueueTestEntry("10"));
+        pqueue.close();
+        
+        // change the last byte of the last record
+        RandomAccessFile raf = new RandomAccessFile(TEST_FILENAME, "rw");
+        raf.seek(raf.length() - 1);
+        int last = raf.read();
+        raf.seek(raf.length() - 1);
+        raf.write(last ^ 0xff);
+        raf.close();
+        PersistentQueueFile file = PersistentQueueFile.open(new File(TEST_FILENAME), 
+                new PersistentQueueStatistics(), false, PersistentQueueCodec.serialization());
+        file.scan();
+        assertEquals(10, file.getEntryCount());
+        file.close();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME);
+        assertEquals(10, pqueue.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(String.valueOf(i), pqueue.remove().content);
+        }
+    }
+    
+    /** 
+     * Test that a record header left garbled by a crash, with a negative 
+     * length, a length beyond the end of the file or an unknown type, is 
+     * treated as the end of the file and cut off.
+     */
+    public void testTornRecordHeader() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            pqueue.add(new PersistentQueueTestEntry(String.valueOf(i)));
+        }
+        pqueue.close();
+        long length = new File(TEST_FILENAME).length();
+        
+        byte[][] tails = {
+            // negative length
+            { 1, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xf0, 0, 0, 0, 0, 1, 2, 3, 4 },
+            // length beyond the end of the file
+            { 3, 0x7f, 0, 0, 0, 0, 0, 0, 0, 1, 2, 3, 4 },
+            // unknown type
+            { 9, 0, 0, 0, 4, 0, 0, 0, 0, 1, 2, 3, 4 },
+            // garbage
+            { 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55, 0x55 }
+        };
+        for (byte[] tail: tails) {
+            FileOutputStream fos = new FileOutputStream(TEST_FILENAME, true);
+            fos.write(tail);
+            fos.close();
+            pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME);
+            assertEquals(10, pqueue.size());
+            assertEquals(length, new File(TEST_FILENAME).length());
+            pqueue.close();
+        }
+        
         pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME);
+        pqueue.add(new PersistentQueueTestEntry("10"));
+        for (int i = 0; i <= 10; i++) {
+            assertEquals(String.valueOf(i), pqueue.remove().content);
+        }
+    }
+    
+    /** 
+     * Test that a temporary file left by a crash during defragmentation is 
+     * discarded while the original file exists, and replaces it otherwise.
+     */
+    public void testInterruptedDefragment() throws Exception {
+        pqueue.add(new PersistentQueueTestEntry("one"));
+        pqueue.add(new PersistentQueueTestEntry("two"));
+        pqueue.close();
+        File temporaryFile = new File(TEST_FILENAME + ".temp");
+        FileOutputStream fos = new FileOutputStream(temporaryFile);
+        fos.write(new byte[] { 1, 2, 3 });
+        fos.close();
+        
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME);
+        assertFalse(temporaryFile.exists());
+        assertEquals(2, pqueue.size());
+        pqueue.close();
+        
+        // a crash after an earlier version deleted the original file
+        assertTrue(new File(TEST_FILENAME).renameTo(temporaryFile));
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME);
+        assertFalse(temporaryFile.exists());
+        assertEquals("one", pqueue.remove().content);
+        assertEquals("two", pqueue.remove().content);
     }
     
     /** 
@@ -112,6 +250,7 @@ public class PersistentQueueTest extends TestCase {
      * */
     public void testWriteList() throws Exception {
         pqueue.clear();
+        pqueue.close();
         
         pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 9);
         // add 20, remove 10
@@ -120,8 +259,10 @@ public class PersistentQueueTest extends TestCase {
             pqueue.add(new PersistentQueueTestEntry(String.valueOf(i)));
             pqueue.remove();
         }
+        awaitDefragments(pqueue, 1);
         
         // lose pqueue now (e.g. because of system crash) and create a new one
+        loseQueue();
         pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 10);
         
         // and check ten elements
@@ -131,12 +272,1203 @@ public class PersistentQueueTest extends TestCase {
         }
     }
     
-    /** Tear down unit test: delete the file created by PersistentQueue. */
+    /** 
+     * Write 100 elements to a segmented queue, remove 60, then lose PersistentQueue.
+     * Checks that fully consumed segments are deleted and the rest is recovered.
+     */
+    public void testSegments() throws Exception {
+        pqueue.close();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 50, 256);
+        for (int i = 0; i < 100; i++) {
+            pqueue.add(new PersistentQueueTestEntry(String.valueOf(i)));
+        }
+        int segmentsBeforeRemove = countSegmentFiles();
+        assertTrue(segmentsBeforeRemove > 2);
+        
+        for (int i = 0; i < 60; i++) {
+            assertEquals(String.valueOf(i), pqueue.remove().content);
+        }
+        assertTrue(countSegmentFiles() < segmentsBeforeRemove);
+        
+        // lose pqueue now (e.g. because of system crash) and create a new one
+        loseQueue();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 50, 256);
+        assertEquals(40, pqueue.size());
+        for (int i = 60; i < 100; i++) {
+            assertEquals(String.valueOf(i), pqueue.remove().content);
+        }
+        assertTrue(pqueue.isEmpty());
+        
+        // a cleared segmented queue must stay empty after a reload
+        pqueue.add(new PersistentQueueTestEntry("one"));
+        pqueue.clear();
+        pqueue.close();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 50, 256);
+        assertTrue(pqueue.isEmpty());
+    }
+    
+    /** 
+     * Test that a file with several head records is replayed up to the last 
+     * of them, which alone decides which elements have been removed, and that
+     * replaying it again gives the same queue without changing the file.
+     */
+    public void testHeadRecords() throws Exception {
+        pqueue.close();
+        PersistentQueueFile file = PersistentQueueFile.create(new File(TEST_FILENAME), 0, 0, 
+                new PersistentQueueStatistics(), false, PersistentQueueCodec.serialization());
+        List<PersistentQueueTestEntry> entries = new ArrayList<PersistentQueueTestEntry>();
+        for (int i = 0; i < 10; i++) {
+            entries.add(new PersistentQueueTestEntry(String.valueOf(i)));
+        }
+        file.appendEntries(entries);
+        
+        // each head record holds the new head, they do not add up
+        file.appendHead(2);
+        file.appendHead(5);
+        file.appendEntry(new PersistentQueueTestEntry("10"));
+        file.appendHead(7);
+        file.close();
+        long length = new File(TEST_FILENAME).length();
+        
+        for (int i = 0; i < 2; i++) {
+            pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 1000);
+            assertEquals(4, pqueue.size());
+            assertEquals("7", pqueue.peek().content);
+            pqueue.close();
+            assertEquals(length, new File(TEST_FILENAME).length());
+        }
+        
+        // a head record appended by the queue supersedes the ones before it
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 1000);
+        assertEquals(2, pqueue.remove(2).size());
+        pqueue.close();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 1000);
+        assertEquals(2, pqueue.size());
+        assertEquals("9", pqueue.remove().content);
+        assertEquals("10", pqueue.remove().content);
+    }
+    
+    /** 
+     * Write a file the way earlier versions did, one serialized object per entry,
+     * and check that it is read and converted to the current format. 
+     */
+    public void testReadLegacyFile() throws Exception {
+        pqueue.close();
+        File file = new File(TEST_FILENAME);
+        file.delete();
+        Serializable[] entries = { new PersistentQueueTestEntry("one"), 
+                new PersistentQueueTestEntry("two"), new PersistentQueueDeleteMarker(),
+                new PersistentQueueTestEntry("three") };
+        FileOutputStream fos = new FileOutputStream(file);
+        for (Serializable entry: entries) {
+            ObjectOutputStream oos = new ObjectOutputStream(fos);
+            oos.writeObject(entry);
+            oos.flush();
+        }
+        fos.close();
+        
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME);
+        assertEquals(2, pqueue.size());
+        pqueue.add(new PersistentQueueTestEntry("four"));
+        pqueue.close();
+        
+        // reload the converted file
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME);
+        assertEquals("two", pqueue.remove().content);
+        assertEquals("three", pqueue.remove().content);
+        assertEquals("four", pqueue.remove().content);
+        assertTrue(pqueue.isEmpty());
+    }
+    
+    /** Test that a closed queue rejects changes and can be opened again. */
+    public void testClose() throws Exception {
+        pqueue.clear();
+        pqueue.add(new PersistentQueueTestEntry("one"));
+        pqueue.close();
+        
+        try {
+            pqueue.add(new PersistentQueueTestEntry("two"));
+            fail("Added element to closed queue");
+        } catch (IOException e) {
+            // expected
+        }
+        
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME);
+        assertEquals("one", pqueue.remove().content);
+    }
+    
+    /** Test adding and removing elements in batches. */
+    public void testBatches() throws Exception {
+        List<PersistentQueueTestEntry> entries = new ArrayList<PersistentQueueTestEntry>();
+        for (int i = 0; i < 10; i++) {
+            entries.add(new PersistentQueueTestEntry(String.valueOf(i)));
+        }
+        pqueue.addAll(entries);
+        assertEquals(10, pqueue.size());
+        
+        List<PersistentQueueTestEntry> removed = pqueue.remove(4);
+        assertEquals(4, removed.size());
+        for (int i = 0; i < 4; i++) {
+            assertEquals(String.valueOf(i), removed.get(i).content);
+        }
+        
+        // lose pqueue now (e.g. because of system crash) and create a new one
+        loseQueue();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME);
+        assertEquals(6, pqueue.size());
+        
+        List<PersistentQueueTestEntry> drained = new ArrayList<PersistentQueueTestEntry>();
+        assertEquals(6, pqueue.drainTo(drained, 100));
+        assertEquals("4", drained.get(0).content);
+        assertEquals("9", drained.get(5).content);
+        assertTrue(pqueue.remove(5).isEmpty());
+        pqueue.close();
+        
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME);
+        assertTrue(pqueue.isEmpty());
+    }
+    
+    /** Test that recovery only deserializes the elements that have not been removed. */
+    public void testRecoverOnlyLiveElements() throws Exception {
+        pqueue.close();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 1000);
+        for (int i = 0; i < 100; i++) {
+            pqueue.add(new PersistentQueueTestEntry(String.valueOf(i)));
+        }
+        pqueue.remove(90);
+        
+        // lose pqueue now (e.g. because of system crash) and create a new one
+        loseQueue();
+        PersistentQueueTestEntry.deserialized = 0;
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 1000);
+        assertEquals(10, PersistentQueueTestEntry.deserialized);
+        assertEquals(10, pqueue.size());
+        assertEquals("90", pqueue.peek().content);
+    }
+    
+    /** Test that a queue is restored from its checkpoint, and without it. */
+    public void testCheckpoint() throws Exception {
+        pqueue.close();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 1000, 256);
+        for (int i = 0; i < 100; i++) {
+            pqueue.add(new PersistentQueueTestEntry(String.valueOf(i)));
+        }
+        pqueue.remove(90);
+        pqueue.close();
+        File checkpointFile = new File(TEST_FILENAME + ".checkpoint");
+        assertTrue(checkpointFile.exists());
+        
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 1000, 256);
+        assertEquals(10, pqueue.size());
+        assertEquals("90", pqueue.peek().content);
+        pqueue.add(new PersistentQueueTestEntry("100"));
+        pqueue.remove(5);
+        
+        // lose pqueue now, and the checkpoint with it
+        pqueue.close();
+        FileOutputStream fos = new FileOutputStream(checkpointFile);
+        fos.write(new byte[] {1, 2, 3});
+        fos.close();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 1000, 256);
+        assertEquals(6, pqueue.size());
+        assertEquals("95", pqueue.peek().content);
+        pqueue.close();
+        
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 1000, 256);
+        assertEquals(6, pqueue.size());
+        for (int i = 95; i <= 100; i++) {
+            assertEquals(String.valueOf(i), pqueue.remove().content);
+        }
+    }
+    
+    /** 
+     * Test that a checkpoint left over from an earlier file of the same name 
+     * is not applied to a new file, even if their headers hold the same 
+     * sequence numbers.
+     */
+    public void testStaleCheckpoint() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            pqueue.add(new PersistentQueueTestEntry(String.valueOf(i)));
+        }
+        pqueue.remove(3);
+        pqueue.close();
+        assertTrue(new File(TEST_FILENAME + ".checkpoint").exists());
+        
+        // start over with a new file, but leave the checkpoint in place
+        new File(TEST_FILENAME).delete();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME);
+        for (int i = 0; i < 5; i++) {
+            pqueue.add(new PersistentQueueTestEntry(String.valueOf((char)('a' + i))));
+        }
+        
+        // lose pqueue now (e.g. because of system crash) and create a new one
+        loseQueue();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME);
+        assertEquals(5, pqueue.size());
+        for (int i = 0; i < 5; i++) {
+            assertEquals(String.valueOf((char)('a' + i)), pqueue.remove().content);
+        }
+    }
+    
+    /** Test that at most the given number of elements is kept in memory. */
+    public void testMemoryLimit() throws Exception {
+        pqueue.close();
+        for (long segmentSize: new long[] {0, 256}) {
+            pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 7, 
+                    segmentSize, PersistentQueueDurability.NONE, 10);
+            for (int i = 0; i < 100; i++) {
+                pqueue.add(new PersistentQueueTestEntry(String.valueOf(i)));
+            }
+            assertEquals(100, pqueue.size());
+            assertEquals("0", pqueue.peek().content);
+            assertEquals(15, pqueue.remove(15).size());
+            assertEquals("15", pqueue.peek().content);
+            pqueue.close();
+            
+            PersistentQueueTestEntry.deserialized = 0;
+            pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 7, 
+                    segmentSize, PersistentQueueDurability.NONE, 10);
+            assertEquals(10, PersistentQueueTestEntry.deserialized);
+            assertEquals(85, pqueue.size());
+            for (int i = 15; i < 100; i++) {
+                assertEquals(String.valueOf(i), pqueue.remove().content);
+            }
+            assertTrue(pqueue.isEmpty());
+            pqueue.clear();
+            pqueue.close();
+        }
+    }
+    
+    /** Test that the durability policies force the file to disk when they should. */
+    public void testDurability() throws Exception {
+        pqueue.add(new PersistentQueueTestEntry("one"));
+        pqueue.remove();
+        assertEquals(0, pqueue.getStatistics().getSyncCount());
+        pqueue.close();
+        
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 50, 0, 
+                PersistentQueueDurability.ALWAYS);
+        pqueue.add(new PersistentQueueTestEntry("one"));
+        pqueue.add(new PersistentQueueTestEntry("two"));
+        pqueue.remove();
+        assertEquals(3, pqueue.getStatistics().getSyncCount());
+        pqueue.close();
+        
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 50, 0, 
+                PersistentQueueDurability.interval(10));
+        pqueue.add(new PersistentQueueTestEntry("three"));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pqueue.getStatistics().getSyncCount() == 0 
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(pqueue.getStatistics().getSyncCount() > 0);
+        assertEquals("two", pqueue.remove().content);
+        assertEquals("three", pqueue.remove().content);
+    }
+    
+    /** Test that concurrent producers all get their elements in with GROUP_COMMIT. */
+    public void testGroupCommit() throws Exception {
+        pqueue.close();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 50, 0, 
+                PersistentQueueDurability.GROUP_COMMIT);
+        Thread[] producers = new Thread[8];
+        final Exception[] failure = new Exception[1];
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 25; j++) {
+                            pqueue.add(new PersistentQueueTestEntry(String.valueOf(j)));
+                        }
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            producers[i].start();
+        }
+        for (Thread producer: producers) {
+            producer.join();
+        }
+        
+        assertNull(failure[0]);
+        assertEquals(200, pqueue.size());
+        assertEquals("0", pqueue.peek().content);
+        assertTrue(pqueue.getStatistics().getSyncCount() <= 200);
+        
+        // lose pqueue now (e.g. because of system crash) and create a new one
+        loseQueue();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME);
+        assertEquals(200, pqueue.size());
+    }
+    
+    /** 
+     * Test that concurrent producers share forces with GROUP_COMMIT, and that
+     * closing the queue writes the elements that are still pending.
+     */
+    public void testGroupCommitBatching() throws Exception {
+        pqueue.close();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 50, 0, 
+                PersistentQueueDurability.GROUP_COMMIT);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger added = new AtomicInteger();
+        Thread[] producers = new Thread[16];
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < 25; j++) {
+                            pqueue.add(new PersistentQueueTestEntry(String.valueOf(j)));
+                            added.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        // the queue has been closed
+                    }
+                }
+            };
+            producers[i].start();
+        }
+        start.countDown();
+        for (Thread producer: producers) {
+            producer.join();
+        }
+        assertEquals(400, added.get());
+        assertTrue(pqueue.getStatistics().getSyncCount() < 400);
+        
+        // close the queue while producers are adding elements
+        final CountDownLatch restart = new CountDownLatch(1);
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = new Thread() {
+                public void run() {
+                    try {
+                        restart.await();
+                        while (true) {
+                            pqueue.add(new PersistentQueueTestEntry("more"));
+                            added.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        // the queue has been closed
+                    }
+                }
+            };
+            producers[i].start();
+        }
+        restart.countDown();
+        while (added.get() < 500) {
+            Thread.sleep(1);
+        }
+        pqueue.close();
+        for (Thread producer: producers) {
+            producer.join();
+        }
+        
+        // every element whose add() has returned is in the file
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME);
+        assertEquals(added.get(), pqueue.size());
+    }
+    
+    /** 
+     * Test that addAsync() completes with consecutive sequence numbers, and 
+     * that pollAsync() waits for elements and fails when the queue is closed.
+     */
+    public void testAsync() throws Exception {
+        pqueue.close();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 50, 0, 
+                PersistentQueueDurability.GROUP_COMMIT);
+        List<CompletableFuture<Long>> added = new ArrayList<CompletableFuture<Long>>();
+        for (int i = 0; i < 1000; i++) {
+            added.add(pqueue.addAsync(new PersistentQueueTestEntry(String.valueOf(i))));
+        }
+        long first = added.get(0).get(5, TimeUnit.SECONDS);
+        for (int i = 0; i < added.size(); i++) {
+            assertEquals(first + i, added.get(i).get(5, TimeUnit.SECONDS).longValue());
+        }
+        assertEquals(1000, pqueue.size());
+        
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(String.valueOf(i), pqueue.pollAsync().get(5, TimeUnit.SECONDS).content);
+        }
+        CompletableFuture<PersistentQueueTestEntry> polled = pqueue.pollAsync();
+        Thread.sleep(50);
+        assertFalse(polled.isDone());
+        pqueue.add(new PersistentQueueTestEntry("later"));
+        assertEquals("later", polled.get(5, TimeUnit.SECONDS).content);
+        
+        // no element is removed for a cancelled poll
+        CompletableFuture<PersistentQueueTestEntry> cancelled = pqueue.pollAsync();
+        assertTrue(cancelled.cancel(false));
+        pqueue.add(new PersistentQueueTestEntry("kept"));
+        Thread.sleep(50);
+        assertEquals(1, pqueue.size());
+        assertEquals("kept", pqueue.pollAsync().get(5, TimeUnit.SECONDS).content);
+        
+        polled = pqueue.pollAsync();
+        pqueue.close();
+        try {
+            polled.get(5, TimeUnit.SECONDS);
+            fail("Poll should fail once the queue is closed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertTrue(pqueue.addAsync(new PersistentQueueTestEntry("closed"))
+                .isCompletedExceptionally());
+    }
+    
+    /** 
+     * Test that 10000 producers on virtual threads all get their elements in
+     * and that they survive a crash. Runs the producers on a pool of platform
+     * threads on Java versions without virtual threads, or where they are 
+     * still a preview feature. Whether the producers pin their carrier 
+     * threads is not checked, that takes a JVM started with 
+     * -Djdk.tracePinnedThreads.
+     */
+    public void testVirtualThreadProducers() throws Exception {
+        pqueue.close();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 50, 0, 
+                PersistentQueueDurability.GROUP_COMMIT);
+        ExecutorService executor;
+        try {
+            executor = (ExecutorService)Executors.class
+                .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // no virtual threads, or only as a preview feature that is not enabled
+            executor = Executors.newFixedThreadPool(64);
+        }
+        List<Future<?>> producers = new ArrayList<Future<?>>();
+        for (int i = 0; i < 10000; i++) {
+            final String content = String.valueOf(i);
+            producers.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    pqueue.add(new PersistentQueueTestEntry(content));
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> producer: producers) {
+            producer.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        assertEquals(10000, pqueue.size());
+        
+        // lose pqueue now (e.g. because of system crash) and create a new one
+        loseQueue();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME);
+        assertEquals(10000, pqueue.size());
+    }
+    
+    /** Test that take(), poll() and put() wait for elements and for space. */
+    public void testBlocking() throws Exception {
+        assertNull(pqueue.poll(10, TimeUnit.MILLISECONDS));
+        
+        // a consumer waiting for an element
+        final PersistentQueueTestEntry[] taken = new PersistentQueueTestEntry[1];
+        final Exception[] failure = new Exception[1];
+        Thread consumer = new Thread() {
+            public void run() {
+                try {
+                    taken[0] = pqueue.take();
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        consumer.start();
+        pqueue.add(new PersistentQueueTestEntry("one"));
+        consumer.join(5000);
+        assertNull(failure[0]);
+        assertEquals("one", taken[0].content);
+        
+        // a producer waiting for space
+        pqueue.setCapacity(2, 0);
+        assertTrue(pqueue.offer(new PersistentQueueTestEntry("two")));
+        pqueue.put(new PersistentQueueTestEntry("three"));
+        assertEquals(0, pqueue.remainingCapacity());
+        assertFalse(pqueue.offer(new PersistentQueueTestEntry("four")));
+        try {
+            pqueue.add(new PersistentQueueTestEntry("four"));
+            fail("add() to a full queue should fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Thread producer = new Thread() {
+            public void run() {
+                try {
+                    pqueue.put(new PersistentQueueTestEntry("four"));
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        producer.start();
+        assertEquals("two", pqueue.take().content);
+        producer.join(5000);
+        assertNull(failure[0]);
+        
+        List<PersistentQueueTestEntry> drained = new ArrayList<PersistentQueueTestEntry>();
+        assertEquals(2, pqueue.drainTo(drained));
+        assertEquals("three", drained.get(0).content);
+        assertEquals("four", drained.get(1).content);
+        
+        // closing the queue releases waiting consumers
+        consumer = new Thread() {
+            public void run() {
+                try {
+                    pqueue.take();
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        };
+        consumer.start();
+        Thread.sleep(50);
+        pqueue.close();
+        consumer.join(5000);
+        assertTrue(failure[0] instanceof IOException);
+    }
+    
+    /** 
+     * Test that the byte capacity includes the elements being added, and that
+     * an element larger than the byte capacity is only added to an empty queue.
+     */
+    public void testByteCapacity() throws Exception {
+        File file = new File(TEST_FILENAME);
+        pqueue.add(new PersistentQueueTestEntry("0"));
+        long length = file.length();
+        pqueue.add(new PersistentQueueTestEntry("1"));
+        long recordSize = file.length() - length;
+        
+        // space for one more element, but not for two; each is serialized once
+        pqueue.setCapacity(0, 4 * recordSize - 1);
+        PersistentQueueTestEntry.serialized = 0;
+        assertTrue(pqueue.offer(new PersistentQueueTestEntry("2")));
+        assertEquals(1, PersistentQueueTestEntry.serialized);
+        assertFalse(pqueue.offer(new PersistentQueueTestEntry("3")));
+        assertEquals(3, pqueue.size());
+        try {
+            pqueue.addAll(Collections.nCopies(2, new PersistentQueueTestEntry("3")));
+            fail("addAll() beyond the byte capacity should fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        
+        // an element larger than the byte capacity
+        pqueue.setCapacity(0, 1);
+        assertFalse(pqueue.offer(new PersistentQueueTestEntry("3")));
+        assertEquals(3, pqueue.remove(3).size());
+        assertTrue(pqueue.offer(new PersistentQueueTestEntry("3")));
+        assertFalse(pqueue.offer(new PersistentQueueTestEntry("4")));
+        assertEquals("3", pqueue.remove().content);
+        
+        // the group commit writer appends the elements as they have been encoded
+        pqueue.close();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 1000, 0, 
+                PersistentQueueDurability.GROUP_COMMIT);
+        pqueue.setCapacity(0, 100 * recordSize);
+        PersistentQueueTestEntry.serialized = 0;
+        pqueue.add(new PersistentQueueTestEntry("5"));
+        assertEquals(1, PersistentQueueTestEntry.serialized);
+        assertEquals("5", pqueue.peek().content);
+    }
+    
+    /** Test that producers and consumers can use the queue concurrently. */
+    public void testConcurrentProducersAndConsumers() throws Exception {
+        pqueue.close();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 50, 4096,
+                PersistentQueueDurability.NONE, 20);
+        final int producerCount = 4;
+        final int elementsPerProducer = 500;
+        final Exception[] failure = new Exception[1];
+        final List<String> consumed = new ArrayList<String>();
+        
+        Thread[] threads = new Thread[producerCount * 2];
+        for (int i = 0; i < producerCount; i++) {
+            final int producer = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < elementsPerProducer; j++) {
+                            pqueue.add(new PersistentQueueTestEntry(producer + ":" + j));
+                        }
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            threads[producerCount + i] = new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < elementsPerProducer; j++) {
+                            String content = pqueue.take().content;
+                            synchronized (consumed) {
+                                consumed.add(content);
+                            }
+                        }
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+        }
+        for (Thread thread: threads) {
+            thread.start();
+        }
+        for (Thread thread: threads) {
+            thread.join(30000);
+        }
+        
+        assertNull(failure[0]);
+        assertTrue(pqueue.isEmpty());
+        assertEquals(producerCount * elementsPerProducer, consumed.size());
+        for (int i = 0; i < producerCount; i++) {
+            for (int j = 0; j < elementsPerProducer; j++) {
+                assertTrue(consumed.contains(i + ":" + j));
+            }
+        }
+    }
+    
+    /** 
+     * Test that elements added and removed during background defragmentation
+     * are kept, and that their records are copied without deserializing them.
+     */
+    public void testBackgroundDefragment() throws Exception {
+        pqueue.close();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 10);
+        int next = 0;
+        for (; next < 100; next++) {
+            pqueue.add(new PersistentQueueTestEntry(String.valueOf(next)));
+        }
+        PersistentQueueTestEntry.deserialized = 0;
+        for (int i = 0; i < 90; i++) {
+            assertEquals(String.valueOf(i), pqueue.remove().content);
+            if (i % 3 == 0) {
+                pqueue.add(new PersistentQueueTestEntry(String.valueOf(next++)));
+            }
+        }
+        awaitDefragments(pqueue, 1);
+        assertEquals("90", pqueue.peek().content);
+        
+        // the records have been copied as they are
+        assertEquals(0, PersistentQueueTestEntry.deserialized);
+        pqueue.close();
+        assertFalse(new File(TEST_FILENAME + ".temp").exists());
+        
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 10);
+        assertEquals(next - 90, pqueue.size());
+        for (int i = 90; i < next; i++) {
+            assertEquals(String.valueOf(i), pqueue.remove().content);
+        }
+    }
+    
+    /** Test that a garbage policy defragments the file once it holds more garbage than elements. */
+    public void testGarbagePolicy() throws Exception {
+        pqueue.close();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 
+                PersistentQueueDefragmentPolicy.garbage(1.0, 0, 0, 0), 0, 
+                PersistentQueueDurability.NONE, 0);
+        for (int i = 0; i < 100; i++) {
+            pqueue.add(new PersistentQueueTestEntry(String.valueOf(i)));
+        }
+        assertTrue(pqueue.getGarbageRatio() < 1.0);
+        
+        // the garbage exceeds the live bytes after removing half of the elements
+        for (int i = 0; i < 30; i++) {
+            pqueue.remove();
+        }
+        assertEquals(0, pqueue.getStatistics().getDefragmentCount());
+        for (int i = 30; i < 60; i++) {
+            pqueue.remove();
+        }
+        awaitDefragments(pqueue, 1);
+        assertTrue(pqueue.getGarbageRatio() < 1.0);
+        pqueue.close();
+        
+        // no defragmentation while the file is smaller than the minimum size
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 
+                PersistentQueueDefragmentPolicy.garbage(1.0, 0, 1L << 20, 0), 0, 
+                PersistentQueueDurability.NONE, 0);
+        assertEquals(40, pqueue.remove(40).size());
+        assertEquals(Double.POSITIVE_INFINITY, pqueue.getGarbageRatio());
+        assertEquals(0, pqueue.getStatistics().getDefragmentCount());
+    }
+    
+    /** 
+     * Test that the header and the class records of a file do not count as 
+     * garbage, so that the file of an empty queue is not defragmented again.
+     */
+    public void testGarbageOfEmptyQueue() throws Exception {
+        pqueue.close();
+        pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 
+                PersistentQueueDefragmentPolicy.garbage(1.0, 0, 0, 0), 0, 
+                PersistentQueueDurability.NONE, 0);
+        assertEquals(0.0, pqueue.getGarbageRatio(), 0.0);
+        pqueue.add(new PersistentQueueTestEntry("one"));
+        assertEquals(0.0, pqueue.getGarbageRatio(), 0.0);
+        
+        // the removed element and the head record are garbage
+        pqueue.remove();
+        awaitDefragments(pqueue, 1);
+        assertEquals(0.0, pqueue.getGarbageRatio(), 0.0);
+        pqueue.add(new PersistentQueueTestEntry("two"));
+        assertEquals(0.0, pqueue.getGarbageRatio(), 0.0);
+        assertEquals(1, pqueue.getStatistics().getDefragmentCount());
+    }
+    
+    /** 
+     * Test that a memory-mapped queue keeps its elements across reopening, 
+     * and that its file is cut back to its records when it is closed.
+     */
+    public void testMemoryMapped() throws Exception {
+        pqueue.close();
+        for (long segmentSize: new long[] {0, 256}) {
+            pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 
+                    PersistentQueueDefragmentPolicy.removes(10), segmentSize, 
+                    PersistentQueueDurability.ALWAYS, 10, true);
+            for (int i = 0; i < 100; i++) {
+                pqueue.add(new PersistentQueueTestEntry(String.valueOf(i)));
+            }
+            assertEquals(30, pqueue.remove(30).size());
+            assertEquals("30", pqueue.peek().content);
+            pqueue.close();
+            if (segmentSize == 0) {
+                assertTrue(new File(TEST_FILENAME).length() < 
+                        PersistentQueueFile.MAP_REGION_SIZE);
+            }
+            
+            pqueue = new PersistentQueue<PersistentQueueTestEntry>(TEST_FILENAME, 
+                    PersistentQueueDefragmentPolicy.removes(10), segmentSize, 
+                    PersistentQueueDurability.ALWAYS, 10, true);
+            assertEquals(70, pqueue.size());
+            pqueue.add(new PersistentQueueTestEntry("100"));
+            if (segmentSize > 0) {
+                // only the newest segment is mapped, reading the others does not extend them
+                File[] files = segmentFiles();
+                assertTrue(files.length > 1);
+                int extended = 0;
+                for (File file: files) {
+                    if (file.length() >= PersistentQueueFile.MAP_REGION_SIZE) {
+                        extended++;
+                    }
+                }
+                assertEquals(1, extended);
+            }
+            for (int i = 30; i <= 100; i++) {
+                assertEquals(String.valueOf(i), pqueue.remove().content);
+            }
+            assertTrue(pqueue.isEmpty());
+            pqueue.clear();
+            pqueue.close();
+        }
+    }
+    
+    /** Test that elements written by the built-in codecs are read back after reopening. */
+    public void testCodecs() throws Exception {
+        pqueue.close();
+        PersistentQueue<String> strings = new PersistentQueue<String>(TEST_FILENAME, 
+                PersistentQueueDefragmentPolicy.removes(10), 0, 
+                PersistentQueueDurability.NONE, 0, false, PersistentQueueCodec.STRING);
+        try {
+            strings.add("one");
+            strings.add("\u00fcber");
+        } finally {
+            strings.close();
+        }
+        strings = new PersistentQueue<String>(TEST_FILENAME, 
+                PersistentQueueDefragmentPolicy.removes(10), 0, 
+                PersistentQueueDurability.NONE, 0, false, PersistentQueueCodec.STRING);
+        try {
+            assertEquals("one", strings.remove());
+            assertEquals("\u00fcber", strings.remove());
+            assertTrue(strings.isEmpty());
+        } finally {
+            strings.close();
+        }
+        
+        PersistentQueue<byte[]> bytes = new PersistentQueue<byte[]>(TEST_FILENAME, 
+                PersistentQueueDefragmentPolicy.removes(10), 256, 
+                PersistentQueueDurability.NONE, 5, false, PersistentQueueCodec.BYTES);
+        try {
+            for (int i = 0; i < 50; i++) {
+                bytes.add(new byte[] { (byte)i, (byte)(i * 2) });
+            }
+        } finally {
+            bytes.close();
+        }
+        bytes = new PersistentQueue<byte[]>(TEST_FILENAME, 
+                PersistentQueueDefragmentPolicy.removes(10), 256, 
+                PersistentQueueDurability.NONE, 5, false, PersistentQueueCodec.BYTES);
+        try {
+            for (int i = 0; i < 50; i++) {
+                byte[] element = bytes.remove();
+                assertEquals(2, element.length);
+                assertEquals((byte)i, element[0]);
+                assertEquals((byte)(i * 2), element[1]);
+            }
+            assertTrue(bytes.isEmpty());
+        } finally {
+            bytes.close();
+        }
+        
+        // serialized elements encoded on their own can be decoded on their own
+        PersistentQueueCodec<PersistentQueueTestEntry> codec = 
+            PersistentQueueCodec.serialization();
+        byte[] data = codec.encode(new PersistentQueueTestEntry("one"));
+        assertEquals("one", codec.decode(data, 0, data.length).content);
+    }
+    
+    /** 
+     * Test that a byte queue hands out read-only records, which are slices of
+     * the file for records read from a memory-mapped file.
+     */
+    public void testByteQueue() throws Exception {
+        pqueue.close();
+        PersistentByteQueue bytes = new PersistentByteQueue(TEST_FILENAME, 
+                PersistentQueueDefragmentPolicy.removes(10), 0, 
+                PersistentQueueDurability.NONE, 5, true);
+        try {
+            for (int i = 0; i < 20; i++) {
+                bytes.add(("record " + i).getBytes("UTF-8"));
+            }
+            ByteBuffer record = bytes.remove();
+            assertTrue(record.isReadOnly());
+            assertEquals("record 0", decode(record));
+            bytes.release(record);
+            bytes.add(ByteBuffer.wrap("record 20".getBytes("UTF-8")));
+        } finally {
+            bytes.close();
+        }
+        
+        bytes = new PersistentByteQueue(TEST_FILENAME, 
+                PersistentQueueDefragmentPolicy.removes(10), 0, 
+                PersistentQueueDurability.NONE, 5, true);
+        try {
+            assertEquals(20, bytes.size());
+            for (int i = 1; i <= 20; i++) {
+                ByteBuffer record = bytes.remove();
+                assertTrue(record.isReadOnly());
+                assertTrue(record.isDirect());
+                assertEquals("record " + i, decode(record));
+                bytes.release(record);
+            }
+            assertTrue(bytes.isEmpty());
+        } finally {
+            bytes.close();
+        }
+    }
+    
+    /** 
+     * Test that a publisher emits elements as they are requested and arrive, 
+     * and removes them once onNext() has returned or they are acknowledged.
+     */
+    public void testPublisher() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            pqueue.add(new PersistentQueueTestEntry(String.valueOf(i)));
+        }
+        PersistentQueuePublisher<PersistentQueueTestEntry> publisher = 
+            new PersistentQueuePublisher<PersistentQueueTestEntry>(pqueue);
+        final List<Integer> sizes = Collections.synchronizedList(new ArrayList<Integer>());
+        TestSubscriber subscriber = new TestSubscriber(3) {
+            public void onNext(PersistentQueueTestEntry entry) {
+                sizes.add(Integer.valueOf(pqueue.size()));
+                super.onNext(entry);
+            }
+        };
+        publisher.subscribe(subscriber);
+        subscriber.await(3);
+        awaitSize(pqueue, 7);
+        
+        // each element is removed before the next one is emitted
+        assertEquals(Arrays.asList(10, 9, 8), sizes);
+        
+        // a second subscriber is rejected
+        TestSubscriber rejected = new TestSubscriber(1);
+        publisher.subscribe(rejected);
+        assertTrue(rejected.error instanceof IllegalStateException);
+        
+        // elements are emitted as they arrive
+        subscriber.subscription.request(8);
+        subscriber.await(10);
+        pqueue.add(new PersistentQueueTestEntry("10"));
+        subscriber.await(11);
+        for (int i = 0; i < 11; i++) {
+            assertEquals(String.valueOf(i), subscriber.received.get(i).content);
+        }
+        awaitSize(pqueue, 0);
+        subscriber.subscription.cancel();
+        
+        // elements are only removed once they are acknowledged
+        pqueue.add(new PersistentQueueTestEntry("11"));
+        pqueue.add(new PersistentQueueTestEntry("12"));
+        publisher = new PersistentQueuePublisher<PersistentQueueTestEntry>(pqueue, false);
+        subscriber = new TestSubscriber(Long.MAX_VALUE);
+        publisher.subscribe(subscriber);
+        subscriber.await(2);
+        assertEquals(2, pqueue.size());
+        subscriber.subscription.acknowledge(1);
+        assertEquals(1, pqueue.size());
+        subscriber.subscription.cancel();
+        
+        // an element that has not been acknowledged is emitted again
+        subscriber = new TestSubscriber(Long.MAX_VALUE);
+        publisher.subscribe(subscriber);
+        subscriber.await(1);
+        assertEquals("12", subscriber.received.get(0).content);
+        
+        pqueue.close();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (subscriber.error == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(subscriber.error instanceof IOException);
+    }
+    
+    /** 
+     * Test the ring buffer of the elements in memory: wrapping around its end,
+     * growing while wrapped around and removing elements at both ends.
+     */
+    public void testBuffer() throws Exception {
+        PersistentQueueBuffer<Integer> buffer = new PersistentQueueBuffer<Integer>();
+        LinkedList<Integer> expected = new LinkedList<Integer>();
+        int next = 0;
+        
+        // move the first element to the back half, then wrap around the end
+        for (int i = 0; i < 10; i++) {
+            buffer.add(Integer.valueOf(next));
+            expected.add(Integer.valueOf(next++));
+        }
+        for (int i = 0; i < 8; i++) {
+            assertEquals(expected.removeFirst(), buffer.removeFirst());
+        }
+        for (int i = 0; i < 12; i++) {
+            buffer.add(Integer.valueOf(next));
+            expected.add(Integer.valueOf(next++));
+        }
+        assertEquals(expected, buffer);
+        
+        // grow while wrapped around
+        for (int i = 0; i < 20; i++) {
+            buffer.add(Integer.valueOf(next));
+            expected.add(Integer.valueOf(next++));
+        }
+        assertEquals(expected, buffer);
+        
+        // remove at both ends
+        while (!expected.isEmpty()) {
+            assertEquals(expected.removeLast(), buffer.removeLast());
+            assertEquals(expected.removeFirst(), buffer.removeFirst());
+            assertEquals(expected, buffer);
+        }
+        buffer.add(Integer.valueOf(next));
+        assertEquals(Integer.valueOf(next), buffer.peekFirst());
+        buffer.clear();
+        assertTrue(buffer.isEmpty());
+        try {
+            buffer.removeFirst();
+            fail("removeFirst() of an empty buffer should fail");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+        try {
+            buffer.removeLast();
+            fail("removeLast() of an empty buffer should fail");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+    }
+    
+    /** 
+     * Test the ring buffer of record positions: wrapping around its end, 
+     * growing while wrapped around, removing positions at the front and 
+     * keeping the total size.
+     */
+    public void testIndex() throws Exception {
+        PersistentQueueIndex index = new PersistentQueueIndex();
+        int first = 0;
+        int next = 0;
+        
+        // move the first position to the back half, then wrap around the end
+        for (int i = 0; i < 10; i++) {
+            index.add(next * 100L, next++);
+        }
+        index.removeFirst(8);
+        first += 8;
+        for (int i = 0; i < 12; i++) {
+            index.add(next * 100L, next++);
+        }
+        assertIndex(index, first, next);
+        
+        // grow while wrapped around
+        for (int i = 0; i < 20; i++) {
+            index.add(next * 100L, next++);
+        }
+        assertIndex(index, first, next);
+        
+        // positions added from another index, which has wrapped around itself
+        PersistentQueueIndex other = new PersistentQueueIndex();
+        for (int i = 0; i < 16; i++) {
+            other.add(i, i);
+        }
+        other.removeFirst(10);
+        for (int i = 0; i < 10; i++) {
+            other.add(next * 100L, next++);
+        }
+        other.removeFirst(6);
+        index.addAll(other);
+        assertIndex(index, first, next);
+        
+        // remove at the front, up to all positions
+        while (index.size() > 0) {
+            int count = Math.min(7, index.size());
+            index.removeFirst(count);
+            first += count;
+            assertIndex(index, first, next);
+        }
+        try {
+            index.removeFirst(1);
+            fail("removeFirst() beyond the size of the index should fail");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+        index.add(1, 2);
+        index.clear();
+        assertEquals(0, index.size());
+        assertEquals(0, index.getTotalSize());
+    }
+    
+    /** 
+     * Checks that the given index holds the positions (100 * i, i) for all
+     * i from <code>first</code> up to <code>end</code>, exclusive.
+     */
+    private static void assertIndex(PersistentQueueIndex index, int first, int end) {
+        assertEquals(end - first, index.size());
+        long totalSize = 0;
+        for (int i = first; i < end; i++) {
+            assertEquals(i * 100L, index.getOffset(i - first));
+            assertEquals(i, index.getSize(i - first));
+            totalSize += i;
+        }
+        assertEquals(totalSize, index.getTotalSize());
+    }
+    
+    /** Returns the remaining bytes of the given buffer as a UTF-8 string. */
+    private static String decode(ByteBuffer buffer) throws Exception {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+    
+    /** 
+     * Drops the test queue without closing it, like a crash would: no 
+     * checkpoint is written, nothing is truncated and pending changes are not
+     * forced to disk. The queue is only closed by {@link #tearDown()}, after
+     * the test has created a new one from its files.
+     */
+    private void loseQueue() {
+        lostQueues.add(pqueue);
+    }
+    
+    /** Waits until the given queue has been defragmented the given number of times. */
+    private void awaitDefragments(PersistentQueue<?> queue, long count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.getStatistics().getDefragmentCount() < count 
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(queue.getStatistics().getDefragmentCount() >= count);
+    }
+    
+    /** Returns the segment files that belong to the test queue. */
+    private File[] segmentFiles() {
+        final File file = new File(TEST_FILENAME).getAbsoluteFile();
+        return file.getParentFile().listFiles(new FileFilter() {
+            public boolean accept(File candidate) {
+                return candidate.getName().startsWith(file.getName() + ".segment.");
+            }
+        });
+    }
+    
+    /** Returns the number of segment files that belong to the test queue. */
+    private int countSegmentFiles() {
+        return segmentFiles().length;
+    }
+    
+    /** Waits until the given queue holds the given number of elements. */
+    private void awaitSize(PersistentQueue<?> queue, int size) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.size() != size && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(size, queue.size());
+    }
+    
+    /** Subscriber that records the elements it receives. */
+    private static class TestSubscriber implements Flow.Subscriber<PersistentQueueTestEntry> {
+        final List<PersistentQueueTestEntry> received = 
+            Collections.synchronizedList(new ArrayList<PersistentQueueTestEntry>());
+        final long initialRequest;
+        volatile PersistentQueueSubscription<?> subscription;
+        volatile Throwable error;
+        
+        TestSubscriber(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+        
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = (PersistentQueueSubscription<?>)subscription;
+            subscription.request(initialRequest);
+        }
+        
+        public void onNext(PersistentQueueTestEntry entry) {
+            received.add(entry);
+        }
+        
+        public void onError(Throwable error) {
+            this.error = error;
+        }
+        
+        public void onComplete() {
+        }
+        
+        /** Waits until the given number of elements has been received. */
+        void await(int count) throws Exception {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (received.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(count, received.size());
+        }
+    }
+    
+    /** Tear down unit test: delete the files created by PersistentQueue. */
     protected void tearDown() throws Exception {
         super.tearDown();
+        pqueue.close();
+        for (PersistentQueue<?> lostQueue: lostQueues) {
+            try {
+                lostQueue.close();
+            } catch (IOException e) {
+                // its files may have been replaced by the queue created after it
+            }
+        }
+        lostQueues.clear();
         
-        // delete the file created by pqueue
-        File deleteFile = new File(TEST_FILENAME);
-        deleteFile.delete();
+        deleteTestFiles();
+    }
+    
+    /** 
+     * Deletes the test file along with its temporary file, checkpoint and 
+     * segment files, whose names all start with its name.
+     */
+    private void deleteTestFiles() {
+        final File file = new File(TEST_FILENAME).getAbsoluteFile();
+        File[] files = file.getParentFile().listFiles(new FileFilter() {
+            public boolean accept(File candidate) {
+                return candidate.getName().startsWith(file.getName());
+            }
+        });
+        for (File deleteFile: files) {
+            deleteFile.delete();
+        }
     }
 }
@@ -15,6 +15,9 @@
 
 package com.gaborcselle.persistent;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 /** 
@@ -28,7 +31,23 @@ class PersistentQueueTestEntry implements Serializable {
     public final static long serialVersionUID = 1;
     public String content;
     
+    /** How many entries have been deserialized so far? */
+    static int deserialized = 0;
+    
+    /** How many entries have been serialized so far? */
+    static int serialized = 0;
+    
     public PersistentQueueTestEntry(String content) {
         this.content = content;
     }
-}
\ No newline at end of file
+    
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        deserialized++;
+    }
+    
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        serialized++;
+    }
+}